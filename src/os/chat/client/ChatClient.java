@@ -1,17 +1,42 @@
 package os.chat.client;
 
+import os.chat.server.Attachment;
+import os.chat.server.AttachmentStore;
+import os.chat.server.AttachmentStoreInterface;
+import os.chat.server.ChatClock;
 import os.chat.server.ChatServer;
 import os.chat.server.ChatServerInterface;
 import os.chat.server.ChatServerManagerInterface;
+import os.chat.server.JoinResult;
+import os.chat.server.LocalTransport;
+import os.chat.server.SubscriptionFilter;
 
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
 import java.net.Inet4Address;
+import java.net.InetAddress;
+import java.net.NetworkInterface;
+import java.rmi.NoSuchObjectException;
 import java.rmi.NotBoundException;
+import java.rmi.Remote;
 import java.rmi.RemoteException;
 import java.rmi.registry.LocateRegistry;
 import java.rmi.registry.Registry;
 import java.rmi.server.UnicastRemoteObject;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
 import java.util.Vector;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
  * This class implements a chat client that can be run locally or remotely to
@@ -29,9 +54,47 @@ public class ChatClient implements CommandsFromWindow, CommandsFromServer {
 
     //Q2
     private CommandsFromServer skeleton;
-    private HashMap<String, ChatServerInterface> myRooms;
+    private Map<String, ChatServerInterface> myRooms;
+
+    /**
+     * The channel for the files shared in the chat rooms.
+     */
+    private AttachmentStoreInterface attachments;
+
+    /**
+     * The sequence number of the last message seen in each joined chat room,
+     * starting from the last message published before the client joined,
+     * in the order the rooms were joined.
+     */
+    private final Map<String, Long> cursors = new LinkedHashMap<String, Long>();
     private String ip;
 
+    /**
+     * <code>true</code> if the server is looked up in this JVM first, i.e. the
+     * client was pointed to this host.
+     */
+    private boolean local;
+
+    /**
+     * Number of times a message is sent again when the server cannot be
+     * reached, and the delay before the first retry (doubled each time).
+     */
+    private static final int PUBLISH_RETRIES = 3;
+    private static final long RETRY_DELAY_MILLIS = 100;
+
+    /**
+     * Number of times a bulk join or a resume turned away by a busy server is
+     * tried again, after the delay given by the server.
+     */
+    private static final int ADMISSION_RETRIES = 10;
+
+    /**
+     * The ids of the messages sent by this client: a random session number in
+     * the upper half and a counter in the lower half.
+     */
+    private final long sessionId = (long) LocalTransport.newRandom().nextInt() << 32;
+    private final AtomicInteger messageCount = new AtomicInteger();
+
     /**
      * The graphical user interface, accessed through its interface. In return,
      * the GUI will use the CommandsFromWindow interface to call methods to the
@@ -39,18 +102,51 @@ public class ChatClient implements CommandsFromWindow, CommandsFromServer {
      */
     private final CommandsToWindow window;
 
+    /**
+     * Queue of the messages received from the server, handed to the window by
+     * a single dispatcher thread.
+     */
+    private final InboundDispatcher inbound;
+
+    /**
+     * The single thread sending the messages of the user, so that the window
+     * never waits for the server and the messages keep their order. There is
+     * none in the deterministic mode of the {@link LocalTransport}, where
+     * messages are sent on the calling thread.
+     */
+    private final ExecutorService outbound;
+
     /**
      * Constructor for the <code>ChatClient</code>. Must perform the connection to the
      * server. If the connection is not successful, it must exit with an error.
+     * <p>
+     * When the server runs in the same JVM and <code>ip</code> is an address
+     * of this host, the client calls it directly through the
+     * {@link LocalTransport} instead of RMI. A client pointed to another host
+     * always goes through RMI, even if a server runs in its JVM.
      *
      * @param window   reference to the GUI operating the chat client
      * @param userName the name of the user for this client
+     * @param ip       the address of the server
      * @since Q1
      */
     public ChatClient(CommandsToWindow window, String userName, String ip) {
         this.window = window;
+        this.inbound = new InboundDispatcher(window);
+        if (LocalTransport.isDeterministic()) {
+            this.outbound = null;
+        } else {
+            this.outbound = Executors.newSingleThreadExecutor(new ThreadFactory() {
+                public Thread newThread(Runnable task) {
+                    Thread sender = new Thread(task, "outbound-sender");
+                    sender.setDaemon(true);
+                    return sender;
+                }
+            });
+        }
         this.userName = userName;
-        myRooms = new HashMap<String, ChatServerInterface>();
+        // read from the RMI threads when a direct message is received
+        myRooms = new ConcurrentHashMap<String, ChatServerInterface>();
 
         //Q1, Q2, Q6
         // instantiate the skeleton and register it to the RMI registry
@@ -58,8 +154,23 @@ public class ChatClient implements CommandsFromWindow, CommandsFromServer {
             this.ip = Inet4Address.getLocalHost().getHostAddress(); // Q6
             // we get the registry and the skeleton for the client
             registry = LocateRegistry.getRegistry(ip, 1099);
-            skeleton = (CommandsFromServer) UnicastRemoteObject.exportObject(this, 0);
-            csm = (ChatServerManagerInterface) registry.lookup("ChatServerManager");
+            local = LocalTransport.isDeterministic() || isThisHost(ip);
+            csm = local ? (ChatServerManagerInterface) LocalTransport.lookup("ChatServerManager") : null;
+            if (csm != null) {
+                // the server runs in this JVM and calls the client directly
+                skeleton = this;
+            } else {
+                skeleton = (CommandsFromServer) UnicastRemoteObject.exportObject(this, 0);
+                csm = (ChatServerManagerInterface) registry.lookup("ChatServerManager");
+                // the window exits the JVM when it is closed
+                Runtime.getRuntime().addShutdownHook(new Thread(new Runnable() {
+                    public void run() {
+                        close();
+                    }
+                }, "chat-client-close"));
+            }
+            csm.connectUser(userName, skeleton);
+            attachments = (AttachmentStoreInterface) lookup("AttachmentStore");
 
         } catch (RemoteException e) {
             System.out.println("(RemoteException) Cannot create the chat client");
@@ -73,6 +184,36 @@ public class ChatClient implements CommandsFromWindow, CommandsFromServer {
         }
     }
 
+    /**
+     * Looks up a server object, in this JVM first if the server is on this
+     * host, and then in the RMI registry.
+     *
+     * @param name the name of the object in the RMI registry
+     * @return the object, or a stub to it
+     */
+    private Remote lookup(String name) throws RemoteException, NotBoundException {
+        Remote object = local ? LocalTransport.lookup(name) : null;
+        return object != null ? object : registry.lookup(name);
+    }
+
+    /**
+     * Checks whether an address is one of this host, where the registry is
+     * the one a server of this JVM is bound to.
+     *
+     * @param ip the address, <code>null</code> for the loopback address
+     * @return <code>true</code> if the address is a local one
+     */
+    private static boolean isThisHost(String ip) {
+        try {
+            InetAddress address = InetAddress.getByName(ip);
+            return address.isLoopbackAddress() || address.isAnyLocalAddress()
+                    || NetworkInterface.getByInetAddress(address) != null;
+        } catch (IOException e) {
+            // unknown host or no network interface: not this one
+            return false;
+        }
+    }
+
     /*
      * Implementation of the functions from the CommandsFromWindow interface.
      * See methods description in the interface definition.
@@ -81,21 +222,120 @@ public class ChatClient implements CommandsFromWindow, CommandsFromServer {
     /**
      * Sends a new <code>message</code> to the server to propagate to all clients
      * registered to the chat room <code>roomName</code>.
+     * <p>
+     * Each message carries an id, so it is sent again when the call fails: the
+     * server drops the copies of a message it already received. If the
+     * server still cannot be reached, e.g. because it was restarted, the
+     * session is resumed and the message sent once more. The message is
+     * sent, and retried, by the outbound thread: this method returns at once,
+     * since the window calls it from the Swing event thread.
      *
      * @param roomName the chat room name
      * @param message  the message to send to the chat room on the server
      */
-    public void sendText(String roomName, String message) {
+    public void sendText(final String roomName, final String message) {
 
         //Q3
         // method to send the message to the server
+        final long messageId = sessionId | (messageCount.incrementAndGet() & 0xffffffffL);
+        if (outbound == null) {
+            send(roomName, message, messageId);
+            return;
+        }
         try {
-            // we call the publish method of the server
-            myRooms.get(roomName).publish(message, userName);
+            outbound.execute(new Runnable() {
+                public void run() {
+                    send(roomName, message, messageId);
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            System.out.println("(RejectedExecutionException) Cannot send the message: the client is closed");
+        }
+    }
+
+    /**
+     * Sends a message to a chat room, retrying when the server cannot be
+     * reached, and resuming the session when the retries fail.
+     */
+    private void send(String roomName, String message, long messageId) {
+        long delay = RETRY_DELAY_MILLIS;
+        boolean resumed = false;
+        for (int attempt = 0; ; attempt++) {
+            // looked up again at each attempt, since resuming replaces the stubs
+            ChatServerInterface room = myRooms.get(roomName);
+            if (room == null) {
+                // the room was left before the message could be sent
+                return;
+            }
+            try {
+                // we call the publish method of the server
+                room.publish(message, userName, messageId);
+                return;
+            } catch (RemoteException e) {
+                if (attempt >= PUBLISH_RETRIES) {
+                    if (!resumed && resumeSession()) {
+                        resumed = true;
+                        continue;
+                    }
+                    System.out.println("(RemoteException) Cannot send the text");
+                    e.printStackTrace();
+                    return;
+                }
+            }
+            try {
+                ChatClock.sleep(delay);
+            } catch (InterruptedException e) {
+                return;
+            }
+            delay *= 2;
+        }
+    }
+
+    /**
+     * Sends a direct <code>message</code> to all the clients of the user
+     * <code>recipient</code>, without going through a chat room.
+     *
+     * @param recipient the name of the user to send the message to
+     * @param message   the message to send
+     * @return <code>true</code> if the recipient is connected,
+     * <code>false</code> otherwise
+     */
+    public boolean sendDirectText(String recipient, String message) {
+        try {
+            return csm.sendDirect(message, userName, recipient);
+        } catch (RemoteException e) {
+            System.out.println("(RemoteException) Cannot send the direct text");
+            e.printStackTrace();
+        }
+        return false;
+    }
+
+    /**
+     * Sets the filter of the messages received from the joined chat room
+     * <code>roomName</code>, e.g. to receive only the mentions of this user.
+     *
+     * @param roomName the chat room name
+     * @param filter   the filter, <code>null</code> to receive every message
+     * @return <code>true</code> if the filter was set, <code>false</code>
+     * otherwise
+     */
+    public boolean setRoomFilter(String roomName, SubscriptionFilter filter) {
+        ChatServerInterface room = myRooms.get(roomName);
+        if (room == null) {
+            return false;
+        }
+        try {
+            if (filter != null) {
+                // so that the messages of this user still come back to it
+                filter.setOwner(userName);
+            }
+            room.setFilter(skeleton, filter);
+            return true;
         } catch (RemoteException e) {
-            System.out.println("(RemoteException) Cannot send the text");
+            System.out.println("(RemoteException) Cannot set the room filter");
             e.printStackTrace();
         }
+        return false;
     }
 
     /**
@@ -132,8 +372,11 @@ public class ChatClient implements CommandsFromWindow, CommandsFromServer {
         try {
             //Q2
             // register the client to the room
-            myRooms.put(roomName, (ChatServerInterface) registry.lookup("room_" + roomName));
-            myRooms.get(roomName).register(skeleton);
+            myRooms.put(roomName, (ChatServerInterface) lookup("room_" + roomName));
+            long joinedAt = myRooms.get(roomName).register(skeleton);
+            synchronized (cursors) {
+                cursors.put(roomName, joinedAt);
+            }
             return true;
         } catch (NotBoundException e) {
             System.out.println("(NotBoundException) Cannot join the chat room");
@@ -145,6 +388,40 @@ public class ChatClient implements CommandsFromWindow, CommandsFromServer {
         return false;
     }
 
+    /**
+     * Joins several chat rooms with a single call to the server. When the
+     * server is busy, e.g. because many clients reconnect at the same time,
+     * the call is retried after the delay given by the server.
+     *
+     * @param roomNames the names of the chat rooms to join
+     * @return the names of the chat rooms joined
+     */
+    public Vector<String> joinChatRooms(Vector<String> roomNames) {
+        Vector<String> joined = new Vector<String>();
+        try {
+            JoinResult result = csm.joinRooms(skeleton, roomNames);
+            for (int attempt = 0; !result.isAdmitted() && attempt < ADMISSION_RETRIES; attempt++) {
+                ChatClock.sleep(result.getRetryAfterMillis());
+                result = csm.joinRooms(skeleton, roomNames);
+            }
+            myRooms.putAll(result.getRooms());
+            synchronized (cursors) {
+                for (Map.Entry<String, Long> joinedAt : result.getCursors().entrySet()) {
+                    if (!cursors.containsKey(joinedAt.getKey())) {
+                        cursors.put(joinedAt.getKey(), joinedAt.getValue());
+                    }
+                }
+            }
+            joined.addAll(result.getRooms().keySet());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (RemoteException e) {
+            System.out.println("(RemoteException) Cannot join the chat rooms");
+            e.printStackTrace();
+        }
+        return joined;
+    }
+
     /**
      * Leaves the chat room with the specified name
      * <code>roomName</code>. The operation has no effect if has not
@@ -159,7 +436,10 @@ public class ChatClient implements CommandsFromWindow, CommandsFromServer {
         try {
             // we remove the room from the list of rooms
             myRooms.remove(roomName);
-            ChatServerInterface chatServer = (ChatServerInterface) registry.lookup("room_" + roomName);
+            synchronized (cursors) {
+                cursors.remove(roomName);
+            }
+            ChatServerInterface chatServer = (ChatServerInterface) lookup("room_" + roomName);
             chatServer.unregister(skeleton);
             return true;
         } catch (NotBoundException e) {
@@ -172,6 +452,79 @@ public class ChatClient implements CommandsFromWindow, CommandsFromServer {
         return false;
     }
 
+    /**
+     * Disconnects this client from the server: leaves all the joined chat
+     * rooms and removes it from the user directory, so that the server stops
+     * sending it messages. A client of a remote server does this when its
+     * JVM exits. Also stops the outbound and dispatcher threads, so that the
+     * clients closed in a long-running JVM leave no thread behind; the
+     * messages still waiting to be sent are dropped.
+     */
+    public void close() {
+        if (outbound != null) {
+            outbound.shutdownNow();
+        }
+        for (String roomName : myRooms.keySet()) {
+            leaveChatRoom(roomName);
+        }
+        try {
+            csm.disconnectUser(userName, skeleton);
+        } catch (RemoteException e) {
+            System.out.println("(RemoteException) Cannot disconnect the user");
+            e.printStackTrace();
+        }
+        if (skeleton != this) {
+            try {
+                UnicastRemoteObject.unexportObject(this, true);
+            } catch (NoSuchObjectException e) {
+                // already unexported
+            }
+        }
+        inbound.shutdown();
+    }
+
+    /**
+     * Resumes the session after a disconnection: registers this client again
+     * to all its chat rooms and receives the messages it missed, with a
+     * single call to the server (after looking the server up again if it was
+     * restarted). Called when a message cannot be sent, and by the
+     * applications that detect a disconnection otherwise.
+     *
+     * @return <code>true</code> if all the chat rooms were resumed,
+     * <code>false</code> otherwise
+     */
+    public boolean resumeSession() {
+        HashMap<String, Long> lastSeen;
+        synchronized (cursors) {
+            lastSeen = new HashMap<String, Long>(cursors);
+        }
+        try {
+            JoinResult resumed;
+            try {
+                resumed = csm.resumeSession(userName, skeleton, lastSeen);
+            } catch (RemoteException e) {
+                // the server may have been restarted, its old stub is no longer valid
+                csm = (ChatServerManagerInterface) lookup("ChatServerManager");
+                resumed = csm.resumeSession(userName, skeleton, lastSeen);
+            }
+            for (int attempt = 0; !resumed.isAdmitted() && attempt < ADMISSION_RETRIES; attempt++) {
+                ChatClock.sleep(resumed.getRetryAfterMillis());
+                resumed = csm.resumeSession(userName, skeleton, lastSeen);
+            }
+            myRooms.putAll(resumed.getRooms());
+            return resumed.isAdmitted() && resumed.getRooms().size() == lastSeen.size();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (NotBoundException e) {
+            System.out.println("(NotBoundException) Cannot resume the session");
+            e.printStackTrace();
+        } catch (RemoteException e) {
+            System.out.println("(RemoteException) Cannot resume the session");
+            e.printStackTrace();
+        }
+        return false;
+    }
+
     /**
      * Creates a new room named <code>roomName</code> on the server.
      *
@@ -185,7 +538,7 @@ public class ChatClient implements CommandsFromWindow, CommandsFromServer {
         try {
             if (csm.createRoom(roomName)) {
                 // we add the room to the list of rooms
-                myRooms.put(roomName, (ChatServerInterface) registry.lookup("room_" + roomName));
+                myRooms.put(roomName, (ChatServerInterface) lookup("room_" + roomName));
 
                 //TODO : try to join the room by using the joinChatRoom method
                 //this.joinChatRoom(roomName);
@@ -203,6 +556,191 @@ public class ChatClient implements CommandsFromWindow, CommandsFromServer {
         return false;
     }
 
+    /**
+     * Shares a file in the joined chat room <code>roomName</code>. The file
+     * is uploaded in chunks to the attachment store of the server, and only
+     * a reference to it is published in the room once the upload is
+     * complete. Each chunk is sent again when the call fails; if the upload
+     * still fails, it can be continued with {@link #resumeUpload(long, File)}.
+     *
+     * @param roomName the chat room name
+     * @param file     the file to share
+     * @return the id of the attachment if its upload was started, or
+     * <code>-1</code> if the server refused it or could not be reached
+     */
+    public long sendFile(String roomName, File file) {
+        long attachmentId;
+        try {
+            attachmentId = attachments.beginUpload(roomName, userName, file.getName(), file.length());
+        } catch (RemoteException e) {
+            System.out.println("(RemoteException) Cannot send the file");
+            e.printStackTrace();
+            return -1;
+        }
+        if (attachmentId >= 0) {
+            resumeUpload(attachmentId, file);
+        }
+        return attachmentId;
+    }
+
+    /**
+     * Uploads the rest of a file whose upload was started by
+     * {@link #sendFile(String, File)}, from the bytes the server already
+     * has, and completes the upload.
+     *
+     * @param attachmentId the id of the attachment
+     * @param file         the file being shared
+     * @return <code>true</code> if the upload is complete, <code>false</code>
+     * otherwise
+     */
+    public boolean resumeUpload(long attachmentId, File file) {
+        try {
+            RandomAccessFile in = new RandomAccessFile(file, "r");
+            try {
+                Attachment attachment = attachments.getAttachment(attachmentId);
+                if (attachment == null) {
+                    return false;
+                }
+                byte[] buffer = new byte[AttachmentStore.CHUNK_SIZE];
+                long offset = attachment.getUploaded();
+                int failures = 0;
+                long delay = RETRY_DELAY_MILLIS;
+                while (offset < attachment.getSize()) {
+                    int length = (int) Math.min(buffer.length, attachment.getSize() - offset);
+                    in.seek(offset);
+                    in.readFully(buffer, 0, length);
+                    try {
+                        long uploaded = attachments.uploadChunk(attachmentId, offset, Arrays.copyOf(buffer, length));
+                        if (uploaded <= offset) {
+                            // refused: the attachment is gone, or the file changed
+                            return false;
+                        }
+                        offset = uploaded;
+                        failures = 0;
+                        delay = RETRY_DELAY_MILLIS;
+                    } catch (RemoteException e) {
+                        if (++failures > PUBLISH_RETRIES) {
+                            throw e;
+                        }
+                        ChatClock.sleep(delay);
+                        delay *= 2;
+                        // the chunk may have arrived before the call failed
+                        attachment = attachments.getAttachment(attachmentId);
+                        if (attachment == null) {
+                            return false;
+                        }
+                        offset = attachment.getUploaded();
+                    }
+                }
+                return attachments.completeUpload(attachmentId);
+            } finally {
+                in.close();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (RemoteException e) {
+            System.out.println("(RemoteException) Cannot upload the file");
+            e.printStackTrace();
+        } catch (IOException e) {
+            System.out.println("(IOException) Cannot read the file to upload");
+            e.printStackTrace();
+        }
+        return false;
+    }
+
+    /**
+     * Downloads a file shared in a chat room, in chunks. If
+     * <code>target</code> already holds the beginning of the file, e.g. after
+     * an interrupted download, the download resumes after it; its bytes are
+     * checked against the digest of the server first, and the download
+     * starts over if they differ. The whole file is checked at the end.
+     *
+     * @param attachmentId the id of the attachment, as given in the message
+     *                     referencing it
+     * @param target       the file to write
+     * @return <code>true</code> if the whole file was downloaded and matches
+     * the attachment, <code>false</code> otherwise
+     */
+    public boolean downloadAttachment(long attachmentId, File target) {
+        try {
+            Attachment attachment = attachments.getAttachment(attachmentId);
+            if (attachment == null || !attachment.isComplete()) {
+                return false;
+            }
+            RandomAccessFile out = new RandomAccessFile(target, "rw");
+            try {
+                long offset = Math.min(out.length(), attachment.getSize());
+                if (offset > 0 && !Arrays.equals(digest(out, offset), attachments.getDigest(attachmentId, offset))) {
+                    // not the beginning of this attachment
+                    out.setLength(0);
+                    offset = 0;
+                }
+                int failures = 0;
+                long delay = RETRY_DELAY_MILLIS;
+                while (offset < attachment.getSize()) {
+                    byte[] chunk;
+                    try {
+                        chunk = attachments.readChunk(attachmentId, offset);
+                    } catch (RemoteException e) {
+                        if (++failures > PUBLISH_RETRIES) {
+                            throw e;
+                        }
+                        ChatClock.sleep(delay);
+                        delay *= 2;
+                        continue;
+                    }
+                    if (chunk == null || chunk.length == 0) {
+                        return false;
+                    }
+                    out.seek(offset);
+                    out.write(chunk);
+                    offset += chunk.length;
+                    failures = 0;
+                    delay = RETRY_DELAY_MILLIS;
+                }
+                out.setLength(attachment.getSize());
+                return Arrays.equals(digest(out, attachment.getSize()),
+                        attachments.getDigest(attachmentId, attachment.getSize()));
+            } finally {
+                out.close();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (RemoteException e) {
+            System.out.println("(RemoteException) Cannot download the attachment");
+            e.printStackTrace();
+        } catch (IOException e) {
+            System.out.println("(IOException) Cannot write the downloaded attachment");
+            e.printStackTrace();
+        } catch (NoSuchAlgorithmException e) {
+            System.out.println("(NoSuchAlgorithmException) Cannot check the downloaded attachment");
+            e.printStackTrace();
+        }
+        return false;
+    }
+
+    /**
+     * Computes the SHA-256 digest of the beginning of a file.
+     *
+     * @param file   the file
+     * @param length the number of bytes from the beginning of the file
+     * @return the digest
+     * @throws IOException              if the file cannot be read
+     * @throws NoSuchAlgorithmException if SHA-256 is not available
+     */
+    private static byte[] digest(RandomAccessFile file, long length) throws IOException, NoSuchAlgorithmException {
+        MessageDigest digest = MessageDigest.getInstance("SHA-256");
+        byte[] buffer = new byte[AttachmentStore.CHUNK_SIZE];
+        file.seek(0);
+        for (long read = 0; read < length; ) {
+            int count = (int) Math.min(buffer.length, length - read);
+            file.readFully(buffer, 0, count);
+            digest.update(buffer, 0, count);
+            read += count;
+        }
+        return digest.digest();
+    }
+
     /*
      * Implementation of the functions from the CommandsFromServer interface.
      * See methods description in the interface definition.
@@ -216,13 +754,60 @@ public class ChatClient implements CommandsFromWindow, CommandsFromServer {
      * ChatClient} calls the
      * {@link CommandsToWindow#publish(String chatName, String message)} method
      * of it's window to display the message.
+     * <p>
+     * The message is only queued for the {@link InboundDispatcher}, so the
+     * call returns to the server without waiting for the window.
      *
      * @param roomName the name of the chat room
      * @param message  the message to display
      */
     public void receiveMsg(String roomName, String message) {
         // method to allow server to publish message for client
-        window.publish(roomName, message);
+        inbound.enqueue(roomName, message);
+    }
+
+    /**
+     * Publish a <code>message</code> numbered <code>sequence</code> in the
+     * chat room <code>roomName</code>. Messages already seen, e.g. sent again
+     * when the session was resumed, are ignored.
+     *
+     * @param roomName the name of the chat room
+     * @param message  the message to display
+     * @param sequence the sequence number of the message in the chat room
+     */
+    public void receiveMsg(String roomName, String message, long sequence) {
+        synchronized (cursors) {
+            Long cursor = cursors.get(roomName);
+            if (cursor != null) {
+                if (sequence <= cursor) {
+                    return;
+                }
+                cursors.put(roomName, sequence);
+            }
+        }
+        inbound.enqueue(roomName, message);
+    }
+
+    /**
+     * Displays a direct <code>message</code> from the user
+     * <code>publisher</code>. The window only has tabs for the joined chat
+     * rooms, so the message is shown once, in the first chat room joined, or
+     * on the console if none is.
+     *
+     * @param publisher the name of the user who sent the message
+     * @param message   the message to display
+     */
+    public void receiveDirectMsg(String publisher, String message) {
+        String text = "(direct) " + publisher + ": " + message;
+        String roomName;
+        synchronized (cursors) {
+            roomName = cursors.isEmpty() ? null : cursors.keySet().iterator().next();
+        }
+        if (roomName == null) {
+            System.out.println(text);
+        } else {
+            inbound.enqueue(roomName, text);
+        }
     }
 
     // This class does not contain a main method. You should launch the whole program by launching ChatClientWindow's main method.
@@ -21,6 +21,25 @@ public interface CommandsFromServer extends Remote
 	 * @param message the message to display
 	 */
 	public void receiveMsg(String roomName, String message) throws RemoteException;
+
+	/**
+	 * Publish a <code>message</code> in the chat room <code>roomName</code>,
+	 * numbered <code>sequence</code> in that room. The client remembers the
+	 * last sequence number seen in each room to resume its session after a
+	 * disconnection, and ignores the messages it has already seen.
+	 * @param roomName the name of the chat room
+	 * @param message the message to display
+	 * @param sequence the sequence number of the message in the chat room
+	 */
+	public void receiveMsg(String roomName, String message, long sequence) throws RemoteException;
+
+	/**
+	 * Display a direct <code>message</code> sent by the user
+	 * <code>publisher</code> to the user of this client.
+	 * @param publisher the name of the user who sent the message
+	 * @param message the message to display
+	 */
+	public void receiveDirectMsg(String publisher, String message) throws RemoteException;
 }
 
 
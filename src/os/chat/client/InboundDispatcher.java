@@ -0,0 +1,152 @@
+package os.chat.client;
+
+import os.chat.server.LocalTransport;
+
+import java.awt.EventQueue;
+import java.lang.reflect.InvocationTargetException;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * This class queues the messages received from the server and hands them to
+ * the {@link CommandsToWindow} from a single dispatcher thread.
+ * <p>
+ * The RMI callback only appends to the queue and returns, so the delivery
+ * latency of the server does not depend on how fast the GUI renders. The
+ * dispatcher takes everything that arrived since its last pass, joins the
+ * consecutive messages of each room into one call and runs the calls on the
+ * Swing event thread, keeping the order of the messages of each room.
+ * <p>
+ * In the deterministic mode of the {@link LocalTransport} there is no
+ * dispatcher thread: messages are handed to the window as they arrive, on the
+ * thread delivering them.
+ * <p>
+ * The queue is not bounded: blocking the RMI callback when it is full would
+ * hold the delivery thread of the server, and dropping messages would lose
+ * them silently. It only grows while the Swing event thread is busy, and
+ * each pass empties it, joining its messages into one call per room.
+ */
+public class InboundDispatcher implements Runnable {
+
+    private final CommandsToWindow window;
+
+    /**
+     * <code>true</code> if messages are handed to the window as they arrive
+     */
+    private final boolean inline;
+
+    /**
+     * The messages waiting to be dispatched, as pairs of room name and message
+     */
+    private ArrayList<String[]> queue = new ArrayList<String[]>();
+
+    /**
+     * The dispatcher thread, <code>null</code> in deterministic mode
+     */
+    private final Thread dispatcher;
+
+    /**
+     * <code>true</code> once {@link #shutdown()} was called
+     */
+    private boolean closed;
+
+    /**
+     * Constructor for the <code>InboundDispatcher</code>. Starts the dispatcher
+     * thread, unless in deterministic mode.
+     *
+     * @param window the GUI to hand the messages to
+     */
+    public InboundDispatcher(CommandsToWindow window) {
+        this.window = window;
+        this.inline = LocalTransport.isDeterministic();
+        if (inline) {
+            dispatcher = null;
+            return;
+        }
+        dispatcher = new Thread(this, "inbound-dispatcher");
+        dispatcher.setDaemon(true);
+        dispatcher.start();
+    }
+
+    /**
+     * Queues a <code>message</code> for the chat room <code>roomName</code>.
+     * This method never blocks on the GUI.
+     *
+     * @param roomName the name of the chat room
+     * @param message  the message to display
+     */
+    public synchronized void enqueue(String roomName, String message) {
+        if (closed) {
+            return;
+        }
+        if (inline) {
+            window.publish(roomName, message);
+            return;
+        }
+        queue.add(new String[]{roomName, message});
+        if (queue.size() == 1) {
+            notify();
+        }
+    }
+
+    /**
+     * Stops the dispatcher thread once the messages already queued are
+     * displayed. The messages received afterwards are ignored.
+     */
+    public synchronized void shutdown() {
+        closed = true;
+        notify();
+    }
+
+    /**
+     * Takes all the queued messages, waiting until there is at least one.
+     *
+     * @return the messages, or <code>null</code> once shut down and empty
+     */
+    private synchronized ArrayList<String[]> takeAll() throws InterruptedException {
+        while (queue.isEmpty()) {
+            if (closed) {
+                return null;
+            }
+            wait();
+        }
+        ArrayList<String[]> batch = queue;
+        queue = new ArrayList<String[]>();
+        return batch;
+    }
+
+    public void run() {
+        while (true) {
+            final Map<String, StringBuilder> batch = new LinkedHashMap<String, StringBuilder>();
+            try {
+                ArrayList<String[]> received = takeAll();
+                if (received == null) {
+                    return;
+                }
+                // the window appends each message on a new line, so joining the
+                // messages of a room with new lines displays the same text
+                for (String[] message : received) {
+                    StringBuilder text = batch.get(message[0]);
+                    if (text == null) {
+                        batch.put(message[0], new StringBuilder(message[1]));
+                    } else {
+                        text.append('\n').append(message[1]);
+                    }
+                }
+                EventQueue.invokeAndWait(new Runnable() {
+                    public void run() {
+                        for (Map.Entry<String, StringBuilder> room : batch.entrySet()) {
+                            window.publish(room.getKey(), room.getValue().toString());
+                        }
+                    }
+                });
+            } catch (InterruptedException e) {
+                return;
+            } catch (InvocationTargetException e) {
+                System.out.println("(InvocationTargetException) Cannot display the messages");
+                e.printStackTrace();
+            }
+        }
+    }
+}
@@ -0,0 +1,101 @@
+package os.chat.server;
+
+import java.util.Random;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Limits the number of clients joining or resuming their rooms at the same
+ * time, e.g. when all the clients reconnect after a restart of the server.
+ * <p>
+ * At most <code>permits</code> requests are served concurrently, and at most
+ * <code>maxWaiting</code> requests wait for their turn, for at most
+ * <code>maxWaitMillis</code>. The other requests are turned away with a retry
+ * hint that grows with the backlog and is randomized, so the clients spread
+ * their retries instead of coming back all at once.
+ */
+public class AdmissionQueue
+	{
+
+	private final Semaphore permits;
+	private final int concurrency;
+	private final int maxWaiting;
+	private final long maxWaitMillis;
+	private final long retryMillis;
+
+	private final AtomicInteger waiting = new AtomicInteger();
+	private final Random random = LocalTransport.newRandom();
+
+	/**
+	 * Constructs an admission queue.
+	 *
+	 * @param permits       the number of requests served concurrently
+	 * @param maxWaiting    the number of requests that may wait for a permit
+	 * @param maxWaitMillis how long a request may wait for a permit
+	 * @param retryMillis   the base delay of the retry hints
+	 */
+	public AdmissionQueue(int permits, int maxWaiting, long maxWaitMillis, long retryMillis)
+		{
+		this.permits = new Semaphore(permits, true);
+		this.concurrency = permits;
+		this.maxWaiting = maxWaiting;
+		this.maxWaitMillis = maxWaitMillis;
+		this.retryMillis = retryMillis;
+		}
+
+	/**
+	 * Waits for a permit to serve a request. A request that is admitted must
+	 * call {@link #leave()} when it is served.
+	 *
+	 * @return <code>true</code> if the request is admitted,
+	 * <code>false</code> if the client should retry later
+	 */
+	public boolean enter()
+		{
+		if (permits.tryAcquire())
+			return true;
+		if (waiting.incrementAndGet() > maxWaiting)
+			{
+			waiting.decrementAndGet();
+			return false;
+			}
+		try
+			{
+			return permits.tryAcquire(maxWaitMillis, TimeUnit.MILLISECONDS);
+			}
+		catch (InterruptedException e)
+			{
+			Thread.currentThread().interrupt();
+			return false;
+			}
+		finally
+			{
+			waiting.decrementAndGet();
+			}
+		}
+
+	/**
+	 * Releases the permit of a request that was admitted.
+	 */
+	public void leave()
+		{
+		permits.release();
+		}
+
+	/**
+	 * Computes when a client turned away should come back: the base delay
+	 * times the number of batches waiting, plus a random jitter of up to the
+	 * same amount.
+	 *
+	 * @return the delay before retrying, in milliseconds
+	 */
+	public long retryHint()
+		{
+		long backlog = retryMillis * (1 + waiting.get() / concurrency);
+		synchronized (random)
+			{
+			return Math.max(1, backlog + (long) (random.nextDouble() * backlog));
+			}
+		}
+	}
@@ -0,0 +1,108 @@
+package os.chat.server;
+
+import java.io.Serializable;
+
+/**
+ * The description of a file shared in a chat room through the
+ * {@link AttachmentStore}: what it is, where it was posted, and how much of
+ * it has been uploaded.
+ */
+public class Attachment implements Serializable
+	{
+
+	private static final long serialVersionUID = 1L;
+
+	private final long id;
+	private final String roomName;
+	private final String publisher;
+	private final String fileName;
+	private final long size;
+	private final long uploaded;
+	private final boolean complete;
+
+	/**
+	 * Constructs the description of an attachment.
+	 *
+	 * @param id        the id of the attachment
+	 * @param roomName  the chat room the attachment is posted to
+	 * @param publisher the client from which the attachment originates
+	 * @param fileName  the name of the file, without its directory
+	 * @param size      the size of the file, in bytes
+	 * @param uploaded  the number of bytes uploaded so far
+	 * @param complete  <code>true</code> if the upload is complete and the
+	 *                  attachment can be downloaded
+	 */
+	public Attachment(long id, String roomName, String publisher, String fileName, long size, long uploaded,
+			boolean complete)
+		{
+		this.id = id;
+		this.roomName = roomName;
+		this.publisher = publisher;
+		this.fileName = fileName;
+		this.size = size;
+		this.uploaded = uploaded;
+		this.complete = complete;
+		}
+
+	/**
+	 * @return the id of the attachment
+	 */
+	public long getId()
+		{
+		return id;
+		}
+
+	/**
+	 * @return the chat room the attachment is posted to
+	 */
+	public String getRoomName()
+		{
+		return roomName;
+		}
+
+	/**
+	 * @return the client from which the attachment originates
+	 */
+	public String getPublisher()
+		{
+		return publisher;
+		}
+
+	/**
+	 * @return the name of the file, without its directory
+	 */
+	public String getFileName()
+		{
+		return fileName;
+		}
+
+	/**
+	 * @return the size of the file, in bytes
+	 */
+	public long getSize()
+		{
+		return size;
+		}
+
+	/**
+	 * @return the number of bytes uploaded so far
+	 */
+	public long getUploaded()
+		{
+		return uploaded;
+		}
+
+	/**
+	 * @return <code>true</code> if the upload is complete and the attachment
+	 * can be downloaded
+	 */
+	public boolean isComplete()
+		{
+		return complete;
+		}
+
+	public String toString()
+		{
+		return "attachment #" + id + ": " + fileName + " (" + size + " bytes)";
+		}
+	}
@@ -0,0 +1,730 @@
+package os.chat.server;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.rmi.RemoteException;
+import java.rmi.registry.Registry;
+import java.rmi.server.UnicastRemoteObject;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * The channel for the files shared in the chat rooms, beside the chat
+ * messages.
+ * <p>
+ * A file is uploaded in chunks of at most {@link #CHUNK_SIZE} bytes, written
+ * one after the other to a file of the store directory, so neither the
+ * server nor the client holds the whole file in memory. Once complete, only
+ * a short reference message is published in the chat room; the subscribers
+ * download the file in chunks when they want it, from their own RMI threads.
+ * Large transfers therefore never go through the {@link DeliveryScheduler}.
+ * Both transfers can be resumed: an upload from
+ * {@link Attachment#getUploaded()}, a download from the bytes already
+ * received, once the client has checked them against
+ * {@link #getDigest(long, long)}.
+ * <p>
+ * An upload that receives no chunk for the upload timeout is abandoned and
+ * its file deleted, and the sizes of the uploads in progress are capped
+ * together, so that clients cannot reserve the disk without ever completing
+ * their uploads. Complete attachments are kept for the retention time, and
+ * the oldest ones are deleted earlier when their total size goes over the
+ * storage cap.
+ * <p>
+ * A complete attachment is stored as two files of the store directory: its
+ * bytes, named after its id, and a <code>.meta</code> file describing it.
+ * The attachments of the previous runs are listed again when the store is
+ * constructed, so the references already posted stay valid; their leftover
+ * files (unfinished uploads, bytes without description) are deleted.
+ */
+public class AttachmentStore implements AttachmentStoreInterface
+	{
+
+	/**
+	 * The largest chunk uploaded or downloaded in one call, in bytes.
+	 */
+	public static final int CHUNK_SIZE = 64 * 1024;
+
+	/**
+	 * The longest file name accepted, in characters.
+	 */
+	public static final int MAX_FILE_NAME_LENGTH = 255;
+
+	private static final int META_MAGIC = 0x43415454; // "CATT"
+	private static final int META_VERSION = 1;
+
+	private File directory;
+	private final long maxSize;
+	private final long maxPending;
+	private final long uploadTimeout;
+	private final long retention;
+	private final long maxStored;
+
+	/**
+	 * The bytes announced by the uploads in progress.
+	 */
+	private final AtomicLong pending = new AtomicLong();
+
+	/**
+	 * The complete attachments, oldest first, and their total size. Guarded
+	 * by the lock of the queue.
+	 */
+	private final ArrayDeque<Upload> stored = new ArrayDeque<Upload>();
+	private long storedBytes;
+
+	/**
+	 * The chat rooms by name, where the references to the attachments are
+	 * published.
+	 */
+	private final Map<String, ChatServer> rooms;
+
+	private final ConcurrentHashMap<Long, Upload> uploads = new ConcurrentHashMap<Long, Upload>();
+	private final AtomicLong lastId;
+
+	/**
+	 * Constructs the store, lists the attachments kept by the previous runs
+	 * and binds the store as <code>AttachmentStore</code> to the
+	 * {@link LocalTransport} and, except in deterministic mode, to the RMI
+	 * registry.
+	 *
+	 * @param directory     the directory where the attachments are written,
+	 *                      created on the first upload, or <code>null</code>
+	 *                      for a new temporary directory
+	 * @param maxSize       the largest file accepted, in bytes
+	 * @param maxPending    the largest total size of the uploads in progress,
+	 *                      in bytes
+	 * @param uploadTimeout the time after which an upload that receives no
+	 *                      chunk is abandoned, in milliseconds
+	 * @param retention     the time a complete attachment is kept, in
+	 *                      milliseconds
+	 * @param maxStored     the largest total size of the complete
+	 *                      attachments, in bytes
+	 * @param rooms         the chat rooms by name
+	 * @param registry      the RMI registry to bind to
+	 */
+	public AttachmentStore(File directory, long maxSize, long maxPending, long uploadTimeout, long retention,
+			long maxStored, Map<String, ChatServer> rooms, Registry registry)
+		{
+		this.directory = directory;
+		this.maxSize = maxSize;
+		this.maxPending = maxPending;
+		this.uploadTimeout = uploadTimeout;
+		this.retention = retention;
+		this.maxStored = maxStored;
+		this.rooms = rooms;
+		// above the ids of any previous run, whose files may still be there
+		this.lastId = new AtomicLong(Math.max(ChatClock.millis() * 1000, reindex()));
+		expireAttachments();
+
+		LocalTransport.bind("AttachmentStore", this);
+		if (LocalTransport.isDeterministic() || registry == null)
+			return;
+
+		try
+			{
+			AttachmentStoreInterface skeleton = (AttachmentStoreInterface)UnicastRemoteObject.exportObject(this, 0);
+			registry.rebind("AttachmentStore", skeleton);
+			}
+		catch (RemoteException e)
+			{
+			System.out.println("(RemoteException) Cannot create the attachment store");
+			e.printStackTrace();
+			}
+		}
+
+	/**
+	 * Starts the upload of a file. Nothing is published in the chat room
+	 * until the upload is complete.
+	 *
+	 * @param roomName  the chat room to post the file to
+	 * @param publisher the client from which the file originates
+	 * @param fileName  the name of the file, without its directory
+	 * @param size      the size of the file, in bytes
+	 * @return the id of the attachment, or <code>-1</code> if the room does
+	 * not exist, the file is too large or too many bytes are being uploaded
+	 */
+	public long beginUpload(String roomName, String publisher, String fileName, long size)
+		{
+		String name = new File(fileName).getName();
+		if (!rooms.containsKey(roomName) || size < 0 || size > maxSize || name.length() > MAX_FILE_NAME_LENGTH)
+			return -1;
+
+		expireUploads();
+		expireAttachments();
+		if (pending.addAndGet(size) > maxPending)
+			{
+			pending.addAndGet(-size);
+			System.out.println("upload of " + size + " bytes to " + roomName + " refused: too many bytes pending");
+			return -1;
+			}
+
+		long id = lastId.incrementAndGet();
+		Upload upload;
+		try
+			{
+			upload = new Upload(id, roomName, publisher, name, size, new File(directory(), id + ".part"));
+			upload.digest = MessageDigest.getInstance("SHA-256");
+			upload.lastActivity = ChatClock.millis();
+			// creates the file empty, even if a previous run left one under this id
+			RandomAccessFile file = new RandomAccessFile(upload.file, "rw");
+			try
+				{
+				file.setLength(0);
+				}
+			finally
+				{
+				file.close();
+				}
+			}
+		catch (IOException e)
+			{
+			System.out.println("(IOException) Cannot create the attachment file");
+			e.printStackTrace();
+			pending.addAndGet(-size);
+			return -1;
+			}
+		catch (NoSuchAlgorithmException e)
+			{
+			System.out.println("(NoSuchAlgorithmException) Cannot create the attachment digest");
+			e.printStackTrace();
+			pending.addAndGet(-size);
+			return -1;
+			}
+		uploads.put(id, upload);
+		System.out.println("upload of " + upload.fileName + " (" + size + " bytes) to " + roomName + " started as #" + id);
+		return id;
+		}
+
+	/**
+	 * Appends a chunk to an attachment being uploaded. Chunks are accepted
+	 * only in order: a chunk sent again after a failed call, or sent out of
+	 * order, is ignored and the caller goes on from the returned length.
+	 *
+	 * @param attachmentId the id of the attachment
+	 * @param offset       the position of the chunk in the file
+	 * @param chunk        the bytes of the chunk
+	 * @return the number of bytes uploaded so far, or <code>-1</code> if the
+	 * attachment does not exist or was abandoned
+	 */
+	public long uploadChunk(long attachmentId, long offset, byte[] chunk)
+		{
+		Upload upload = uploads.get(attachmentId);
+		if (upload == null)
+			return -1;
+
+		synchronized (upload)
+			{
+			if (upload.removed || expire(upload))
+				return -1;
+			if (upload.complete || offset != upload.uploaded || chunk.length > CHUNK_SIZE
+					|| upload.uploaded + chunk.length > upload.size)
+				return upload.uploaded;
+
+			try
+				{
+				RandomAccessFile file = new RandomAccessFile(upload.file, "rw");
+				try
+					{
+					file.seek(offset);
+					file.write(chunk);
+					}
+				finally
+					{
+					file.close();
+					}
+				upload.uploaded += chunk.length;
+				upload.digest.update(chunk);
+				upload.lastActivity = ChatClock.millis();
+				}
+			catch (IOException e)
+				{
+				System.out.println("(IOException) Cannot write the attachment chunk");
+				e.printStackTrace();
+				}
+			return upload.uploaded;
+			}
+		}
+
+	/**
+	 * Completes an upload and publishes a reference to the attachment in its
+	 * chat room, on behalf of its publisher. Completing an upload twice
+	 * publishes the reference once. The oldest attachments are deleted if the
+	 * storage cap is exceeded.
+	 *
+	 * @param attachmentId the id of the attachment
+	 * @return <code>true</code> if the whole file was uploaded,
+	 * <code>false</code> otherwise
+	 */
+	public boolean completeUpload(long attachmentId)
+		{
+		Upload upload = uploads.get(attachmentId);
+		if (upload == null)
+			return false;
+
+		synchronized (upload)
+			{
+			if (upload.complete)
+				return true;
+			if (upload.removed || upload.uploaded != upload.size)
+				return false;
+			try
+				{
+				File data = new File(upload.file.getParentFile(), String.valueOf(upload.id));
+				Files.move(upload.file.toPath(), data.toPath(), StandardCopyOption.REPLACE_EXISTING);
+				upload.file = data;
+				upload.fileDigest = upload.digest.digest();
+				upload.digest = null;
+				upload.completedAt = ChatClock.millis();
+				writeMeta(upload);
+				}
+			catch (IOException e)
+				{
+				System.out.println("(IOException) Cannot store the attachment");
+				e.printStackTrace();
+				remove(upload);
+				return false;
+				}
+			upload.complete = true;
+			}
+		pending.addAndGet(-upload.size);
+		synchronized (stored)
+			{
+			stored.add(upload);
+			storedBytes += upload.size;
+			}
+		expireAttachments();
+		ChatServer room = rooms.get(upload.roomName);
+		if (room != null)
+			room.publish("shared " + upload.describe(), upload.publisher);
+		return true;
+		}
+
+	/**
+	 * Describes an attachment.
+	 *
+	 * @param attachmentId the id of the attachment
+	 * @return the attachment, or <code>null</code> if it does not exist
+	 */
+	public Attachment getAttachment(long attachmentId)
+		{
+		Upload upload = uploads.get(attachmentId);
+		if (upload == null)
+			return null;
+
+		synchronized (upload)
+			{
+			return upload.removed ? null : upload.describe();
+			}
+		}
+
+	/**
+	 * Reads a chunk of a complete attachment.
+	 *
+	 * @param attachmentId the id of the attachment
+	 * @param offset       the position of the chunk in the file
+	 * @return at most {@link #CHUNK_SIZE} bytes, none at the end of the file,
+	 * or <code>null</code> if the attachment does not exist, is not complete
+	 * or cannot be read
+	 */
+	public byte[] readChunk(long attachmentId, long offset)
+		{
+		Upload upload = uploads.get(attachmentId);
+		if (upload == null || offset < 0)
+			return null;
+		File data;
+		synchronized (upload)
+			{
+			if (!upload.complete || upload.removed)
+				return null;
+			data = upload.file;
+			}
+
+		// a complete attachment is not written anymore, so it is read unlocked
+		byte[] chunk = new byte[(int) Math.max(0, Math.min(CHUNK_SIZE, upload.size - offset))];
+		try
+			{
+			RandomAccessFile file = new RandomAccessFile(data, "r");
+			try
+				{
+				file.seek(offset);
+				file.readFully(chunk);
+				}
+			finally
+				{
+				file.close();
+				}
+			return chunk;
+			}
+		catch (IOException e)
+			{
+			// also when the attachment was deleted meanwhile
+			System.out.println("(IOException) Cannot read the attachment chunk");
+			e.printStackTrace();
+			return null;
+			}
+		}
+
+	/**
+	 * Computes the SHA-256 digest of the beginning of a complete attachment,
+	 * e.g. for a client to check the bytes it already has before resuming a
+	 * download.
+	 *
+	 * @param attachmentId the id of the attachment
+	 * @param length       the number of bytes from the beginning of the file
+	 * @return the digest, or <code>null</code> if the attachment does not
+	 * exist, is not complete, is shorter than <code>length</code> or cannot be
+	 * read
+	 */
+	public byte[] getDigest(long attachmentId, long length)
+		{
+		Upload upload = uploads.get(attachmentId);
+		if (upload == null || length < 0 || length > upload.size)
+			return null;
+		File data;
+		synchronized (upload)
+			{
+			if (!upload.complete || upload.removed)
+				return null;
+			data = upload.file;
+			}
+		if (length == upload.size)
+			return upload.fileDigest.clone();
+
+		try
+			{
+			MessageDigest digest = MessageDigest.getInstance("SHA-256");
+			byte[] buffer = new byte[CHUNK_SIZE];
+			RandomAccessFile file = new RandomAccessFile(data, "r");
+			try
+				{
+				for (long read = 0; read < length; )
+					{
+					int count = (int) Math.min(buffer.length, length - read);
+					file.readFully(buffer, 0, count);
+					digest.update(buffer, 0, count);
+					read += count;
+					}
+				}
+			finally
+				{
+				file.close();
+				}
+			return digest.digest();
+			}
+		catch (NoSuchAlgorithmException e)
+			{
+			System.out.println("(NoSuchAlgorithmException) Cannot create the attachment digest");
+			e.printStackTrace();
+			return null;
+			}
+		catch (IOException e)
+			{
+			System.out.println("(IOException) Cannot read the attachment");
+			e.printStackTrace();
+			return null;
+			}
+		}
+
+	/**
+	 * Abandons the uploads that received no chunk for the upload timeout.
+	 */
+	private void expireUploads()
+		{
+		for (Upload upload : uploads.values())
+			synchronized (upload)
+				{
+				expire(upload);
+				}
+		}
+
+	/**
+	 * Abandons an upload if it received no chunk for the upload timeout: it
+	 * is forgotten, its file is deleted and its bytes are no longer pending.
+	 * The caller holds the lock of the upload.
+	 *
+	 * @param upload the upload
+	 * @return <code>true</code> if the upload is abandoned
+	 */
+	private boolean expire(Upload upload)
+		{
+		if (upload.complete || upload.removed || ChatClock.millis() - upload.lastActivity < uploadTimeout)
+			return upload.removed;
+
+		System.out.println("upload #" + upload.id + " of " + upload.fileName + " abandoned after "
+				+ upload.uploaded + " of " + upload.size + " bytes");
+		remove(upload);
+		return true;
+		}
+
+	/**
+	 * Deletes the complete attachments kept longer than the retention time,
+	 * and the oldest ones while their total size is over the storage cap.
+	 */
+	private void expireAttachments()
+		{
+		long now = ChatClock.millis();
+		while (true)
+			{
+			Upload oldest;
+			synchronized (stored)
+				{
+				oldest = stored.peek();
+				if (oldest == null || (now - oldest.completedAt < retention && storedBytes <= maxStored))
+					return;
+				stored.poll();
+				storedBytes -= oldest.size;
+				}
+			synchronized (oldest)
+				{
+				System.out.println("attachment #" + oldest.id + " of " + oldest.fileName + " deleted");
+				remove(oldest);
+				}
+			}
+		}
+
+	/**
+	 * Forgets an upload, complete or not, and deletes its files. The caller
+	 * holds the lock of the upload.
+	 */
+	private void remove(Upload upload)
+		{
+		if (!upload.complete)
+			pending.addAndGet(-upload.size);
+		upload.removed = true;
+		upload.digest = null;
+		uploads.remove(upload.id);
+		delete(upload.file);
+		delete(metaFile(upload.file.getParentFile(), upload.id));
+		}
+
+	private static void delete(File file)
+		{
+		if (!file.delete() && file.exists())
+			System.out.println("cannot delete " + file);
+		}
+
+	private static File metaFile(File directory, long id)
+		{
+		return new File(directory, id + ".meta");
+		}
+
+	/**
+	 * Writes the description of a complete attachment beside its bytes,
+	 * through a temporary file so that a crash never leaves a truncated one.
+	 */
+	private static void writeMeta(Upload upload) throws IOException
+		{
+		File meta = metaFile(upload.file.getParentFile(), upload.id);
+		File tmp = new File(meta.getPath() + ".tmp");
+		try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp))))
+			{
+			out.writeInt(META_MAGIC);
+			out.writeInt(META_VERSION);
+			writeString(out, upload.roomName);
+			writeString(out, upload.publisher);
+			writeString(out, upload.fileName);
+			out.writeLong(upload.size);
+			out.writeLong(upload.completedAt);
+			out.writeInt(upload.fileDigest.length);
+			out.write(upload.fileDigest);
+			}
+		Files.move(tmp.toPath(), meta.toPath(), StandardCopyOption.REPLACE_EXISTING,
+				StandardCopyOption.ATOMIC_MOVE);
+		}
+
+	/**
+	 * Reads the description of a complete attachment of a previous run.
+	 *
+	 * @return the attachment, or <code>null</code> if its bytes are missing
+	 * or do not have its size
+	 * @throws IOException if the description cannot be read or is corrupt
+	 */
+	private static Upload readMeta(File directory, long id) throws IOException
+		{
+		try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(
+				metaFile(directory, id)))))
+			{
+			if (in.readInt() != META_MAGIC || in.readInt() != META_VERSION)
+				throw new IOException("Unknown attachment description format for #" + id);
+			Upload upload = new Upload(id, readString(in), readString(in), readString(in), in.readLong(),
+					new File(directory, String.valueOf(id)));
+			upload.completedAt = in.readLong();
+			int length = in.readInt();
+			if (length < 0 || length > 64)
+				throw new IOException("Corrupt attachment description for #" + id);
+			upload.fileDigest = new byte[length];
+			in.readFully(upload.fileDigest);
+			if (!upload.file.isFile() || upload.file.length() != upload.size)
+				return null;
+			upload.uploaded = upload.size;
+			upload.complete = true;
+			return upload;
+			}
+		}
+
+	// names are written with their length, since writeUTF is limited to 64 KB
+	private static void writeString(DataOutputStream out, String value) throws IOException
+		{
+		byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+		out.writeInt(bytes.length);
+		out.write(bytes);
+		}
+
+	private static String readString(DataInputStream in) throws IOException
+		{
+		int length = in.readInt();
+		if (length < 0 || length > 1024 * 1024)
+			throw new IOException("Corrupt attachment description");
+		byte[] bytes = new byte[length];
+		in.readFully(bytes);
+		return new String(bytes, StandardCharsets.UTF_8);
+		}
+
+	/**
+	 * Lists again the complete attachments of the previous runs, oldest
+	 * first, and deletes the files of the store left without a complete
+	 * attachment. Only the files named by the store are touched.
+	 *
+	 * @return the largest id found, <code>0</code> if none
+	 */
+	private long reindex()
+		{
+		if (directory == null || !directory.isDirectory())
+			return 0;
+
+		File[] files = directory.listFiles();
+		if (files == null)
+			return 0;
+		long largestId = 0;
+		ArrayList<Upload> found = new ArrayList<Upload>();
+		for (File file : files)
+			{
+			String name = file.getName();
+			if (!name.matches("[0-9]+(\\.part|\\.meta|\\.meta\\.tmp)?"))
+				continue;
+			long id = Long.parseLong(name.replaceFirst("\\..*", ""));
+			largestId = Math.max(largestId, id);
+			if (!name.endsWith(".meta"))
+				{
+				// the bytes are listed with their description, the rest is left over
+				if (name.contains(".") || !metaFile(directory, id).isFile())
+					delete(file);
+				continue;
+				}
+			try
+				{
+				Upload upload = readMeta(directory, id);
+				if (upload != null)
+					found.add(upload);
+				else
+					delete(file);
+				}
+			catch (IOException e)
+				{
+				System.out.println("(IOException) Cannot read the attachment #" + id);
+				e.printStackTrace();
+				delete(file);
+				delete(new File(directory, String.valueOf(id)));
+				}
+			}
+
+		Collections.sort(found, new Comparator<Upload>()
+			{
+			public int compare(Upload a, Upload b)
+				{
+				return Long.compare(a.completedAt, b.completedAt);
+				}
+			});
+		for (Upload upload : found)
+			{
+			uploads.put(upload.id, upload);
+			stored.add(upload);
+			storedBytes += upload.size;
+			}
+		System.out.println("listed " + found.size() + " attachments of the previous runs");
+		return largestId;
+		}
+
+	/**
+	 * Returns the directory of the attachments, creating it if needed.
+	 *
+	 * @return the directory
+	 * @throws IOException if the directory cannot be created
+	 */
+	private synchronized File directory() throws IOException
+		{
+		if (directory == null)
+			directory = Files.createTempDirectory("chat-attachments").toFile();
+		else if (!directory.isDirectory() && !directory.mkdirs())
+			throw new IOException("Cannot create " + directory);
+		return directory;
+		}
+
+	/**
+	 * The state of an attachment, guarded by its own lock.
+	 */
+	private static class Upload
+		{
+		final long id;
+		final String roomName;
+		final String publisher;
+		final String fileName;
+		final long size;
+
+		/**
+		 * The <code>.part</code> file while uploading, the file named after
+		 * the id once complete.
+		 */
+		File file;
+
+		/**
+		 * The digest of the bytes uploaded so far, dropped once complete.
+		 */
+		MessageDigest digest;
+		long uploaded;
+		long lastActivity;
+		boolean complete;
+		long completedAt;
+
+		/**
+		 * <code>true</code> once abandoned or deleted.
+		 */
+		boolean removed;
+
+		/**
+		 * The digest of the whole file, once complete.
+		 */
+		byte[] fileDigest;
+
+		Upload(long id, String roomName, String publisher, String fileName, long size, File file)
+			{
+			this.id = id;
+			this.roomName = roomName;
+			this.publisher = publisher;
+			this.fileName = fileName;
+			this.size = size;
+			this.file = file;
+			}
+
+		Attachment describe()
+			{
+			return new Attachment(id, roomName, publisher, fileName, size, uploaded, complete);
+			}
+		}
+	}
@@ -0,0 +1,73 @@
+package os.chat.server;
+
+import java.rmi.Remote;
+import java.rmi.RemoteException;
+
+/**
+ * This interface is the set of commands that can be called remotely for the
+ * {@link AttachmentStore}.
+ */
+public interface AttachmentStoreInterface extends Remote
+	{
+
+	/**
+	 * starts the upload of a file to be shared in a chat room
+	 * @param roomName the chat room to post the file to
+	 * @param publisher the client from which the file originates
+	 * @param fileName the name of the file, without its directory
+	 * @param size the size of the file, in bytes
+	 * @return the id of the attachment, or <code>-1</code> if the room does
+	 * not exist, the file is too large or too many bytes are being uploaded
+	 */
+	public long beginUpload(String roomName, String publisher, String fileName, long size) throws RemoteException;
+
+	/**
+	 * appends a chunk of the file to an attachment being uploaded. A chunk
+	 * that does not start at the end of the bytes already uploaded (e.g. sent
+	 * twice after a failed call) is ignored.
+	 * @param attachmentId the id of the attachment
+	 * @param offset the position of the chunk in the file
+	 * @param chunk the bytes of the chunk, at most
+	 * {@link AttachmentStore#CHUNK_SIZE}
+	 * @return the number of bytes uploaded so far, from which to send the
+	 * next chunk, or <code>-1</code> if the attachment does not exist or
+	 * the upload was abandoned after receiving no chunk for too long
+	 */
+	public long uploadChunk(long attachmentId, long offset, byte[] chunk) throws RemoteException;
+
+	/**
+	 * completes the upload of an attachment and posts a reference to it in
+	 * its chat room
+	 * @param attachmentId the id of the attachment
+	 * @return <code>true</code> if the whole file was uploaded,
+	 * <code>false</code> otherwise
+	 */
+	public boolean completeUpload(long attachmentId) throws RemoteException;
+
+	/**
+	 * describes an attachment, e.g. to know from where to resume an upload
+	 * @param attachmentId the id of the attachment
+	 * @return the attachment, or <code>null</code> if it does not exist
+	 */
+	public Attachment getAttachment(long attachmentId) throws RemoteException;
+
+	/**
+	 * reads a chunk of a complete attachment
+	 * @param attachmentId the id of the attachment
+	 * @param offset the position of the chunk in the file
+	 * @return at most {@link AttachmentStore#CHUNK_SIZE} bytes, none at the
+	 * end of the file, or <code>null</code> if the attachment does not exist
+	 * or is not complete
+	 */
+	public byte[] readChunk(long attachmentId, long offset) throws RemoteException;
+
+	/**
+	 * computes the SHA-256 digest of the beginning of a complete attachment,
+	 * to check the bytes already downloaded before resuming a download
+	 * @param attachmentId the id of the attachment
+	 * @param length the number of bytes from the beginning of the file
+	 * @return the digest, or <code>null</code> if the attachment does not
+	 * exist, is not complete or is shorter than <code>length</code>
+	 */
+	public byte[] getDigest(long attachmentId, long length) throws RemoteException;
+}
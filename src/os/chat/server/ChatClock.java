@@ -0,0 +1,87 @@
+package os.chat.server;
+
+/**
+ * The clock of the chat server: the time used for the dedup windows, the
+ * sequence numbers, the scheduling latencies and the traffic statistics.
+ * <p>
+ * By default it is the system clock. For deterministic tests it can be
+ * replaced by a manual clock that only moves when {@link #advance(long)} is
+ * called.
+ */
+public class ChatClock
+	{
+
+	private static volatile boolean manual = false;
+	private static long manualNanos;
+
+	/**
+	 * @return the current time, in milliseconds since the epoch
+	 */
+	public static long millis()
+		{
+		if (!manual)
+			return System.currentTimeMillis();
+		synchronized (ChatClock.class)
+			{
+			return manualNanos / 1000000;
+			}
+		}
+
+	/**
+	 * @return the current value of the high resolution clock, in nanoseconds,
+	 * only meaningful to measure durations
+	 */
+	public static long nanos()
+		{
+		if (!manual)
+			return System.nanoTime();
+		synchronized (ChatClock.class)
+			{
+			return manualNanos;
+			}
+		}
+
+	/**
+	 * Waits for some time: sleeps with the system clock, moves the manual
+	 * clock forward without sleeping with a manual clock.
+	 *
+	 * @param millis the time to wait, in milliseconds
+	 * @throws InterruptedException if the thread is interrupted while sleeping
+	 */
+	public static void sleep(long millis) throws InterruptedException
+		{
+		if (manual)
+			advance(millis);
+		else
+			Thread.sleep(millis);
+		}
+
+	/**
+	 * Replaces the system clock by a manual clock.
+	 *
+	 * @param startMillis the initial time of the manual clock, in milliseconds
+	 */
+	public static synchronized void useManual(long startMillis)
+		{
+		manualNanos = startMillis * 1000000;
+		manual = true;
+		}
+
+	/**
+	 * Moves the manual clock forward.
+	 *
+	 * @param millis the time to add, in milliseconds
+	 */
+	public static synchronized void advance(long millis)
+		{
+		manualNanos += millis * 1000000;
+		}
+
+	/**
+	 * Goes back to the system clock.
+	 */
+	public static synchronized void useSystem()
+		{
+		manual = false;
+		}
+	}
@@ -2,12 +2,19 @@ package os.chat.server;
 
 import os.chat.client.CommandsFromServer;
 
+import java.nio.charset.StandardCharsets;
 import java.rmi.RemoteException;
 import java.rmi.registry.LocateRegistry;
 import java.rmi.registry.Registry;
 import java.rmi.server.UnicastRemoteObject;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
 import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
 import java.util.Vector;
+import java.util.concurrent.ConcurrentHashMap;
 
 /**
  * Each instance of this class is a server for one room.
@@ -22,9 +29,60 @@ import java.util.Vector;
 public class ChatServer implements ChatServerInterface
 	{
 
+	/**
+	 * How long the ids of the published messages are remembered, and how many
+	 * ids are remembered per publisher.
+	 */
+	private static final long DEDUP_WINDOW_MILLIS = 2 * 60 * 1000;
+	private static final int DEDUP_CAPACITY = 128;
+
+	/**
+	 * The largest number of publishers whose message ids a room remembers.
+	 * The publishers are chosen by the clients, so beyond that the least
+	 * recently active one is forgotten: its retries are no longer dropped.
+	 */
+	private static final int DEDUP_PUBLISHERS = Integer.getInteger("os.chat.dedup.publishers", 1024);
+
+	/**
+	 * The largest number of subscribers a single delivery task sends a
+	 * message to. A room gives its turn back between tasks, so a big room
+	 * holds a delivery thread for one batch at a time.
+	 */
+	private static final int DELIVERY_BATCH = 16;
+
 	private String roomName;
 	private Vector<CommandsFromServer> registeredClients;
 
+	/**
+	 * The subscription filters of the clients having one, and their compiled
+	 * form used by {@link #publish(String, String)}.
+	 */
+	private HashMap<CommandsFromServer, SubscriptionFilter> filters;
+	private volatile FilterIndex filterIndex = FilterIndex.EMPTY;
+
+	/**
+	 * The recent message ids of each publisher, to drop retried messages,
+	 * least recently active first. Guarded by its own lock.
+	 */
+	private LinkedHashMap<String, DedupWindow> recentIds;
+
+	/**
+	 * The recent messages of the room, replayed to the clients resuming their
+	 * session. Publishing is synchronized on the history so that messages are
+	 * queued for delivery in the order of their sequence numbers.
+	 */
+	private RoomHistory history;
+
+	/**
+	 * The clients removed from the room whose deliveries queued before the
+	 * removal have not all run yet, with the number of such removals. Those
+	 * deliveries skip them: a client that missed a message must not receive a
+	 * later one, which would move its cursor past the missed message and hide
+	 * it from the replay when the client resumes its session.
+	 */
+	private final ConcurrentHashMap<CommandsFromServer, Integer> departed =
+			new ConcurrentHashMap<CommandsFromServer, Integer>();
+
 	/**
 	 * Constructs and initializes the chat room before registering it to the RMI
 	 * registry.
@@ -32,16 +90,51 @@ public class ChatServer implements ChatServerInterface
 	 * @param roomName the name of the chat room
 	 */
 	public ChatServer(String roomName)
+		{
+		this(roomName, null);
+		}
+
+	/**
+	 * Constructs and initializes the chat room before registering it to the
+	 * given RMI registry. Reusing the same registry reference lets the
+	 * {@link ChatServerManager} restore many rooms in parallel without looking
+	 * up the registry once per room. The room is also bound to the
+	 * {@link LocalTransport} for the clients of the same JVM, and only there
+	 * in deterministic mode.
+	 *
+	 * @param roomName the name of the chat room
+	 * @param registry the RMI registry to bind to, or <code>null</code> to
+	 *                 use the registry on <code>localhost:1099</code>
+	 */
+	public ChatServer(String roomName, Registry registry)
 		{
 		this.roomName = roomName;
+		DeliveryScheduler.getInstance().addRoom(roomName);
 		this.registeredClients = new Vector< CommandsFromServer >();
+		this.filters = new HashMap<CommandsFromServer, SubscriptionFilter>();
+		this.recentIds = new LinkedHashMap<String, DedupWindow>(16, 0.75f, true)
+			{
+			protected boolean removeEldestEntry(Map.Entry<String, DedupWindow> eldest)
+				{
+				return size() > DEDUP_PUBLISHERS;
+				}
+			};
+		// start the sequence numbers above those of any previous run of the
+		// server, so the cursors of the clients stay valid across restarts
+		this.history = new RoomHistory(MessageArena.getInstance(), Integer.getInteger("os.chat.historySize", 256),
+				ChatClock.millis() * 1000);
+
+		LocalTransport.bind("room_" + roomName, this);
+		if (LocalTransport.isDeterministic())
+			return;
 
 		//Q2
 		// bind the chat server to the RMI registry
 		try
 			{
 				// retrieve the RMI registry and add the skeleton to it
-				Registry registry = LocateRegistry.getRegistry("localhost", 1099);
+				if (registry == null)
+					registry = LocateRegistry.getRegistry("localhost", 1099);
 				ChatServerInterface skeleton = (ChatServerInterface)UnicastRemoteObject.exportObject(
 					this, 0);
 
@@ -57,30 +150,186 @@ public class ChatServer implements ChatServerInterface
 	/**
 	 * Publishes to all subscribed clients (i.e. all clients registered to a
 	 * chat room) a message send from a client.
+	 * <p>
+	 * The recipients are selected with the subscription filters of the room
+	 * before the fan-out starts. The fan-out is queued on the shared
+	 * {@link DeliveryScheduler}, in batches of subscribers, and this method
+	 * returns without waiting for it, so a busy room does not hold the RMI
+	 * thread of the publisher.
 	 *
 	 * @param message   the message to propagate
 	 * @param publisher the client from which the message originates
 	 */
 	public void publish(String message, String publisher)
+		{
+		publish(message, publisher, 0);
+		}
+
+	/**
+	 * Publishes a message identified by <code>messageId</code>. A message
+	 * whose id was already published recently by the same publisher is a
+	 * retry and is dropped.
+	 *
+	 * @param message   the message to propagate
+	 * @param publisher the client from which the message originates
+	 * @param messageId the id of the message, unique for the publisher, or
+	 *                  <code>0</code> if the message has no id
+	 */
+	public void publish(final String message, final String publisher, long messageId)
 		{
 			//Q3,Q5
 			// method to send the message to all registered clients
 
-			// use iterator to avoid concurrency problems (because we are modifying the list while iterating over it)
-			Iterator<CommandsFromServer> iterator = registeredClients.iterator();
-			while(iterator.hasNext()){
-				CommandsFromServer client = iterator.next();
+			PublishEvent event = new PublishEvent();
+			event.begin();
+			String outcome = "failed";
+			int subscribers = 0;
+			try
+				{
+				if (!isFirstPublish(publisher, messageId))
+					{
+					System.out.println("dropping duplicate message " + messageId + " from '" + publisher + "'");
+					outcome = "duplicate";
+					return;
+					}
+				// encoded once, for the history and the traffic statistics
+				byte[] encoded = message.getBytes(StandardCharsets.UTF_8);
+				TrafficMonitor.getInstance().record(roomName, publisher, encoded.length);
+
+				// built once for all the batches
+				final String text = publisher + ": " + message;
+				synchronized (history)
+					{
+					final long sequence = history.append(encoded, publisher);
+
+					// copy the clients so registrations do not interfere with the fan-out
+					final CommandsFromServer[] clients = filterIndex.select(
+							registeredClients.toArray(new CommandsFromServer[0]), message, publisher);
+					subscribers = clients.length;
+					if (clients.length == 0)
+						{
+						outcome = registeredClients.isEmpty() ? "no subscribers" : "filtered out";
+						return;
+						}
+					outcome = "queued";
+					for (int from = 0; from < clients.length; from += DELIVERY_BATCH)
+						{
+						final CommandsFromServer[] batch = Arrays.copyOfRange(clients, from,
+								Math.min(clients.length, from + DELIVERY_BATCH));
+						final long submitted = ChatClock.nanos();
+						DeliveryScheduler.getInstance().submit(roomName, batch.length, new Runnable()
+							{
+							public void run()
+								{
+								FanOutEvent fanOut = new FanOutEvent();
+								fanOut.begin();
+								long queueDelay = ChatClock.nanos() - submitted;
+								int delivered = deliver(batch, text, sequence);
+								commitFanOut(fanOut, queueDelay, batch.length, 1, delivered);
+								}
+							});
+						}
+					}
+				}
+			finally
+				{
+				event.end();
+				if (event.shouldCommit())
+					{
+					event.room = roomName;
+					event.publisher = publisher;
+					event.subscribers = subscribers;
+					event.outcome = outcome;
+					event.commit();
+					}
+				}
+		}
+
+	/**
+	 * Records the id of a published message in the window of its publisher.
+	 * The windows of the publishers that stopped publishing are dropped, and
+	 * the least recently active one when there are too many.
+	 */
+	private boolean isFirstPublish(String publisher, long messageId)
+		{
+		if (messageId == 0)
+			return true;
+
+		long now = ChatClock.millis();
+		DedupWindow window;
+		synchronized (recentIds)
+			{
+			// the idle windows are the least recently active ones, at the head
+			Iterator<DedupWindow> windows = recentIds.values().iterator();
+			while (windows.hasNext() && windows.next().isIdle(now))
+				windows.remove();
+
+			window = recentIds.get(publisher);
+			if (window == null)
+				{
+				window = new DedupWindow(DEDUP_WINDOW_MILLIS, DEDUP_CAPACITY, now);
+				recentIds.put(publisher, window);
+				}
+			}
+		return window.firstSeen(messageId, now);
+		}
+
+	private void commitFanOut(FanOutEvent event, long queueDelay, int subscribers, int messages, int delivered)
+		{
+		event.end();
+		if (event.shouldCommit())
+			{
+			event.room = roomName;
+			event.queueDelay = queueDelay;
+			event.subscribers = subscribers;
+			event.messages = messages;
+			event.delivered = delivered;
+			event.commit();
+			}
+		}
+
+	/**
+	 * Sends a message to the given clients. Clients that cannot be reached are
+	 * removed from the chat room.
+	 *
+	 * @return the number of clients that received the message
+	 */
+	private int deliver(CommandsFromServer[] clients, String text, long sequence)
+		{
+			int delivered = 0;
+			for (CommandsFromServer client : clients)
+			{
+				DeliveryEvent event = new DeliveryEvent();
+				event.begin();
+				String outcome = "delivered";
 				try
 				{
-					client.receiveMsg(roomName, publisher + ": " + message);
-					System.out.println("publishing '" + message + "' from '" + publisher + "'");
+					if (departed.containsKey(client))
+						outcome = "departed";
+					else
+					{
+						client.receiveMsg(roomName, text, sequence);
+						delivered++;
+						System.out.println("publishing '" + text + "'");
+					}
 				}
 				catch (RemoteException e)
 				{
-					iterator.remove();;
+					outcome = "unreachable";
+					depart(client);
 					System.out.println("(RemoteException) Cannot send message to client");
 				}
+				event.end();
+				if (event.shouldCommit())
+				{
+					event.room = roomName;
+					event.subscriber = client.toString();
+					event.sequence = sequence;
+					event.outcome = outcome;
+					event.commit();
+				}
 			}
+			return delivered;
 		}
 
 	/**
@@ -88,12 +337,24 @@ public class ChatServer implements ChatServerInterface
 	 *
 	 * @param client the name of the client as registered with the RMI
 	 *               registry
+	 * @return the sequence number of the last message published before the
+	 * client was registered: the client receives all the later ones
 	 */
-	public void register(CommandsFromServer client)
+	public long register(CommandsFromServer client)
 		{
-		this.registeredClients.add(client);
+		RegistrationEvent event = new RegistrationEvent();
+		event.begin();
+		long lastSequence;
+		// under the history lock, so no message falls between the two
+		synchronized (history)
+			{
+			this.registeredClients.add(client);
+			lastSequence = history.getLastSequence();
+			}
+		commitRegistration(event, "register", "registered");
 		//print console message
 		System.out.println("client " + client + " has been registered to the chat room " + roomName);
+		return lastSequence;
 		}
 
 	/**
@@ -104,10 +365,159 @@ public class ChatServer implements ChatServerInterface
 	 */
 	public void unregister(CommandsFromServer client)
 		{
-		this.registeredClients.remove(client);
+		RegistrationEvent event = new RegistrationEvent();
+		event.begin();
+		boolean removed = depart(client);
+		commitRegistration(event, "unregister", removed ? "unregistered" : "not registered");
 		System.out.println("client " + client + " has been unregister to the chat room " + roomName);
 		}
 
+	/**
+	 * Removes a client from the room. The deliveries already queued skip it
+	 * until a marker queued behind them has run.
+	 *
+	 * @return <code>true</code> if the client was registered
+	 */
+	private boolean depart(final CommandsFromServer client)
+		{
+		boolean removed;
+		// under the history lock, so no publish can take a snapshot with the
+		// client and queue it behind the marker
+		synchronized (history)
+			{
+			removed = registeredClients.remove(client);
+			removeFilter(client);
+			synchronized (departed)
+				{
+				Integer count = departed.get(client);
+				departed.put(client, count == null ? 1 : count + 1);
+				}
+			DeliveryScheduler.getInstance().submit(roomName, 1, new Runnable()
+				{
+				public void run()
+					{
+					synchronized (departed)
+						{
+						Integer count = departed.get(client);
+						if (count == null || count == 1)
+							departed.remove(client);
+						else
+							departed.put(client, count - 1);
+						}
+					}
+				});
+			}
+		return removed;
+		}
+
+	private void commitRegistration(RegistrationEvent event, String action, String outcome)
+		{
+		event.end();
+		if (event.shouldCommit())
+			{
+			event.room = roomName;
+			event.action = action;
+			event.subscribers = registeredClients.size();
+			event.outcome = outcome;
+			event.commit();
+			}
+		}
+
+	/**
+	 * Registers a client coming back after a disconnection and sends it the
+	 * messages it missed, i.e. the messages of the history published after
+	 * <code>cursor</code> and accepted by its filter. The missed messages are
+	 * queued before any message published afterwards.
+	 *
+	 * @param client the name of the client as registered with the RMI
+	 *               registry
+	 * @param cursor the sequence number of the last message the client has
+	 *               seen, or a negative number to skip the replay
+	 * @return the sequence number of the last message published before the
+	 * client was registered
+	 */
+	public long resume(final CommandsFromServer client, long cursor)
+		{
+		RegistrationEvent event = new RegistrationEvent();
+		event.begin();
+		synchronized (history)
+			{
+			boolean added = !registeredClients.contains(client) && registeredClients.add(client);
+			commitRegistration(event, "resume", added ? "registered" : "already registered");
+			final long lastSequence = history.getLastSequence();
+			if (cursor < 0)
+				return lastSequence;
+
+			CommandsFromServer[] recipient = new CommandsFromServer[] { client };
+			final ArrayList<RoomHistory.Entry> missed = new ArrayList<RoomHistory.Entry>();
+			for (RoomHistory.Entry entry : history.since(cursor))
+				if (filterIndex.select(recipient, entry.getMessage(), entry.getPublisher()).length > 0)
+					missed.add(entry);
+			System.out.println("client " + client + " has resumed the chat room " + roomName + " with "
+					+ missed.size() + " missed messages");
+			if (missed.isEmpty())
+				return lastSequence;
+			final long submitted = ChatClock.nanos();
+			DeliveryScheduler.getInstance().submit(roomName, missed.size(), new Runnable()
+				{
+				public void run()
+					{
+					FanOutEvent fanOut = new FanOutEvent();
+					fanOut.begin();
+					long queueDelay = ChatClock.nanos() - submitted;
+					int delivered = 0;
+					CommandsFromServer[] recipient = new CommandsFromServer[] { client };
+					for (RoomHistory.Entry entry : missed)
+						delivered += deliver(recipient, entry.getPublisher() + ": " + entry.getMessage(),
+								entry.getSequence());
+					commitFanOut(fanOut, queueDelay, 1, missed.size(), delivered);
+					}
+				});
+			return lastSequence;
+			}
+		}
+
+	/**
+	 * Getter method for the name of the chat room.
+	 *
+	 * @return the name of the chat room
+	 */
+	public String getRoomName()
+		{
+		return roomName;
+		}
+
+	/**
+	 * Sets the subscription filter of a client of the chat room. Only the
+	 * messages accepted by the filter are delivered to the client.
+	 *
+	 * @param client the name of the client as registered with the RMI
+	 *               registry
+	 * @param filter the filter of the client, <code>null</code> or an empty
+	 *               filter to receive every message
+	 */
+	public void setFilter(CommandsFromServer client, SubscriptionFilter filter)
+		{
+		synchronized (filters)
+			{
+			if (filter == null || filter.isEmpty())
+				filters.remove(client);
+			else
+				filters.put(client, filter);
+			filterIndex = new FilterIndex(filters);
+			}
+		System.out.println("client " + client + " has set the filter " + filter + " in the chat room " + roomName);
+		}
+
+	private void removeFilter(CommandsFromServer client)
+		{
+		synchronized (filters)
+			{
+			if (filters.remove(client) != null)
+				filterIndex = new FilterIndex(filters);
+			}
+		}
+
 	public static void main(String[] args)
 		{
 			// empty main method
@@ -18,16 +18,35 @@ public interface ChatServerInterface extends Remote
 	 * @param message The message to propagate
 	 */
 	public void publish(String message, String publisher) throws RemoteException;
+
+	/**
+	 * receives a message from a client and send it to all subscribed clients,
+	 * unless a message with the same id was recently received from the same
+	 * publisher. Publishing again after a failed call is therefore safe.
+	 * @param message The message to propagate
+	 * @param publisher The client from which the message originates
+	 * @param messageId The id of the message, unique for the publisher
+	 */
+	public void publish(String message, String publisher, long messageId) throws RemoteException;
 	
 	/**
 	 * registers a new client to the chat room
 	 * @param client the name of the client as registered on the RMI registry
+	 * @return the sequence number of the last message published before the
+	 * client was registered, the cursor from which to resume the room
 	 */
-	public void register(CommandsFromServer client) throws RemoteException;
+	public long register(CommandsFromServer client) throws RemoteException;
 	
 	/**
 	 * unregisters a new client to the chat room
 	 * @param client the name of the client as registered on the RMI registry
 	 */
 	public void unregister(CommandsFromServer client) throws RemoteException;
+
+	/**
+	 * sets the filter of the messages a client receives from the chat room
+	 * @param client the name of the client as registered on the RMI registry
+	 * @param filter the filter, <code>null</code> to receive every message
+	 */
+	public void setFilter(CommandsFromServer client, SubscriptionFilter filter) throws RemoteException;
 }
@@ -1,12 +1,25 @@
 package os.chat.server;
 
 import os.chat.client.ChatClient;
+import os.chat.client.CommandsFromServer;
 
+import java.io.File;
+import java.io.IOException;
 import java.rmi.RemoteException;
 import java.rmi.registry.LocateRegistry;
 import java.rmi.registry.Registry;
 import java.rmi.server.UnicastRemoteObject;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
 import java.util.Vector;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
  * This class manages the available {@link ChatServer}s and available rooms.
@@ -28,16 +41,56 @@ public class ChatServerManager implements ChatServerManagerInterface
 
 	private Vector<ChatServer> chatRooms;
 
+	/**
+	 * The same chat servers, by room name.
+	 */
+	private ConcurrentHashMap<String, ChatServer> roomsByName;
+
 	// add the registry
 	private Registry registry;
 
+	/**
+	 * All the room names of the catalog, including the rooms that are still
+	 * being restored. Used to check for existing rooms and saved as snapshot.
+	 */
+	private Set<String> catalogRooms;
+
+	private RoomCatalog catalog;
+
+	/**
+	 * The connected users and their clients, for direct messages.
+	 */
+	private UserDirectory users;
+
+	/**
+	 * Limits the number of clients joining or resuming rooms at the same time.
+	 */
+	private AdmissionQueue admission;
+
+	/**
+	 * The files shared in the chat rooms, transferred beside the messages.
+	 */
+	private AttachmentStore attachments;
+
 	private static ChatServerManager instance = null;
 
+	static
+		{
+		// RMI calls have no read timeout by default: without one, a client that
+		// stops reading holds a delivery thread forever. Set before the RMI
+		// transport is loaded, which reads it once.
+		if (System.getProperty("sun.rmi.transport.tcp.responseTimeout") == null)
+			System.setProperty("sun.rmi.transport.tcp.responseTimeout",
+					System.getProperty("os.chat.deliveryTimeout", "5000"));
+		}
+
 	/**
 	 * Constructor of the <code>ChatServerManager</code>.
 	 * <p>
 	 * Must register its functionalities as stubs to be called from RMI by
-	 * the {@link ChatClient}.
+	 * the {@link ChatClient}. The manager is bound before the rooms of the
+	 * catalog are restored so that clients can connect right away; rooms
+	 * show up in {@link #getRoomsList()} as soon as they are bound.
 	 */
 	public ChatServerManager()
 		{
@@ -45,26 +98,130 @@ public class ChatServerManager implements ChatServerManagerInterface
 		/* initialize variables */
 		chatRoomsList = new Vector<String>();
 		chatRooms = new Vector<ChatServer>();
+		roomsByName = new ConcurrentHashMap<String, ChatServer>();
+		catalogRooms = Collections.synchronizedSet(new LinkedHashSet<String>());
+		users = new UserDirectory();
+		// a single thread never waits for a permit in deterministic mode
+		admission = new AdmissionQueue(Integer.getInteger("os.chat.admission.permits", 8),
+				Integer.getInteger("os.chat.admission.queue", 64), LocalTransport.isDeterministic() ? 0 : 200, 250);
+		String catalogPath = System.getProperty("os.chat.catalog");
+		if (catalogPath == null && !LocalTransport.isDeterministic())
+			catalogPath = "rooms.catalog";
+		catalog = new RoomCatalog(catalogPath == null ? null : new File(catalogPath));
 
-		// initial: we create a single chat room and the corresponding ChatServer
-		chatRooms.add(new ChatServer("sports"));
-		chatRoomsList.add("sports");
+		// the clients of the same JVM call the manager directly
+		LocalTransport.bind("ChatServerManager", this);
 
 		//Q1
 		// create a stub/skeleton for the ChatServerManager
-		try
+		if (!LocalTransport.isDeterministic())
 			{
-			ChatServerManagerInterface skeleton = (ChatServerManagerInterface)UnicastRemoteObject.exportObject(
-					this, 0);
-			registry = LocateRegistry.getRegistry();
-			registry.rebind("ChatServerManager", skeleton);
+			try
+				{
+				ChatServerManagerInterface skeleton = (ChatServerManagerInterface)UnicastRemoteObject.exportObject(
+						this, 0);
+				registry = LocateRegistry.getRegistry();
+				registry.rebind("ChatServerManager", skeleton);
+				}
+			catch (RemoteException e)
+				{
+				System.out.println("(RemoteException) Cannot create the chat server manager");
+				e.printStackTrace();
+				}
 			}
-		catch (RemoteException e)
+		System.out.println("ChatServerManager was created");
+
+		// in deterministic mode, the attachments go to a temporary directory unless asked
+		String attachmentDirectory = System.getProperty("os.chat.attachments");
+		if (attachmentDirectory == null && !LocalTransport.isDeterministic())
+			attachmentDirectory = "attachments";
+		attachments = new AttachmentStore(attachmentDirectory == null ? null : new File(attachmentDirectory),
+				Long.getLong("os.chat.attachments.maxSize", 256L * 1024 * 1024),
+				Long.getLong("os.chat.attachments.maxPending", 1024L * 1024 * 1024),
+				Long.getLong("os.chat.attachments.uploadTimeout", 10 * 60 * 1000L),
+				Long.getLong("os.chat.attachments.retention", 24 * 60 * 60 * 1000L),
+				Long.getLong("os.chat.attachments.maxStored", 4096L * 1024 * 1024), roomsByName, registry);
+
+		restoreRooms();
+		}
+
+	/**
+	 * Restores the rooms saved in the catalog snapshot. Rooms are exported and
+	 * bound in parallel, and this method returns without waiting for them
+	 * (except in the deterministic mode of the {@link LocalTransport}, where
+	 * they are restored one after the other before returning).
+	 * <p>
+	 * initial: if there is no catalog yet we create a single chat room. A
+	 * catalog that cannot be read is moved aside and the server starts
+	 * without rooms; if it cannot even be moved, the server does not start,
+	 * since saving the catalog would overwrite it.
+	 */
+	private void restoreRooms()
+		{
+		Vector<String> rooms;
+		if (!catalog.exists())
 			{
-			System.out.println("(RemoteException) Cannot create the chat server manager");
-			e.printStackTrace();
+			rooms = new Vector<String>();
+			rooms.add("sports");
+			catalogRooms.addAll(rooms);
+			catalog.save(catalogRooms);
 			}
-		System.out.println("ChatServerManager was created");
+		else
+			{
+			try
+				{
+				rooms = catalog.load();
+				}
+			catch (IOException e)
+				{
+				System.out.println("(IOException) Cannot load the room catalog");
+				e.printStackTrace();
+				try
+					{
+					System.out.println("the room catalog was moved to " + catalog.setAside());
+					}
+				catch (IOException e2)
+					{
+					throw new IllegalStateException("Cannot move the unreadable room catalog aside", e2);
+					}
+				rooms = new Vector<String>();
+				}
+			catalogRooms.addAll(rooms);
+			}
+
+		final long start = ChatClock.millis();
+		final AtomicInteger remaining = new AtomicInteger(rooms.size());
+		int threads = Math.max(1, Math.min(rooms.size(),
+				Integer.getInteger("os.chat.restoreThreads", 4 * Runtime.getRuntime().availableProcessors())));
+		ExecutorService restorer = LocalTransport.isDeterministic() ? null : Executors.newFixedThreadPool(threads);
+		for (final String roomName : rooms)
+			{
+			Runnable restore = new Runnable()
+				{
+				public void run()
+					{
+					try
+						{
+						addRoom(new ChatServer(roomName, registry));
+						}
+					catch (Exception e)
+						{
+						System.out.println("(Exception) Cannot restore the room " + roomName);
+						e.printStackTrace();
+						}
+					if (remaining.decrementAndGet() == 0)
+						System.out.println("restored " + chatRoomsList.size() + " rooms in "
+								+ (ChatClock.millis() - start) + " ms");
+					}
+				};
+			if (restorer == null)
+				restore.run();
+			else
+				restorer.execute(restore);
+			}
+		// the queued restorations still run, the pool only stops accepting new ones
+		if (restorer != null)
+			restorer.shutdown();
 		}
 
 	/**
@@ -81,6 +238,14 @@ public class ChatServerManager implements ChatServerManagerInterface
 		return instance;
 		}
 
+	/**
+	 * Drops the singleton instance, see {@link LocalTransport#clear()}.
+	 */
+	static synchronized void reset()
+		{
+		instance = null;
+		}
+
 	/**
 	 * Getter method for list of chat rooms.
 	 *
@@ -89,13 +254,17 @@ public class ChatServerManager implements ChatServerManagerInterface
 	 */
 	public Vector<String> getRoomsList()
 		{
-		return chatRoomsList;
+		// a copy, since the clients of the same JVM get it without serialization
+		return new Vector<String>(chatRoomsList);
 		}
 
 	/**
 	 * Creates a chat room with a specified room name <code>roomName</code>.
+	 * The room is saved in the catalog before it is created, so a room that
+	 * would not be there after a restart is not created at all.
 	 *
-	 * @param roomName the name of the chat room
+	 * @param roomName the name of the chat room, at most
+	 *                 {@link RoomCatalog#MAX_NAME_LENGTH} characters
 	 * @return <code>true</code> if the chat room was successfully created,
 	 * <code>false</code> otherwise.
 	 */
@@ -104,24 +273,239 @@ public class ChatServerManager implements ChatServerManagerInterface
 			//Q4
 			// method to create a new room
 
+			RoomCreationEvent event = new RoomCreationEvent();
+			event.begin();
+			String outcome = "failed";
 			try {
-				// check if the room already exists
-				if (chatRoomsList.contains(roomName)) {
+				if (!RoomCatalog.isValidName(roomName)) {
+					System.out.println("room name too long");
+					outcome = "invalid name";
+					return false;
+				}
+				// check if the room already exists (it may still be restoring)
+				if (!catalogRooms.add(roomName)) {
 					System.out.println("room already exists");
+					outcome = "exists";
+					return false;
+				}
+				if (!catalog.save(catalogRooms)) {
+					catalogRooms.remove(roomName);
+					outcome = "not saved";
 					return false;
 				}
 				// create a new room and add it to the list of chat rooms
-				ChatServer newRoom = new ChatServer(roomName);
-				chatRooms.add(newRoom);
-				chatRoomsList.add(roomName);
+				addRoom(new ChatServer(roomName, registry));
+				outcome = "created";
 				return true;
 			} catch (Exception e) {
+				catalogRooms.remove(roomName);
+				catalog.save(catalogRooms);
 				System.out.println("(Exception) Cannot create a new room");
 				e.printStackTrace();
 				return false;
+			} finally {
+				event.end();
+				if (event.shouldCommit()) {
+					event.room = roomName;
+					event.outcome = outcome;
+					event.commit();
+				}
 			}
 		}
 
+	/**
+	 * Adds a bound chat server to the available rooms.
+	 */
+	private void addRoom(ChatServer room)
+		{
+		roomsByName.put(room.getRoomName(), room);
+		chatRooms.add(room);
+		chatRoomsList.add(room.getRoomName());
+		}
+
+	/**
+	 * Resumes the session of a client after a disconnection: connects it to
+	 * the user directory, registers it again to each of its chat rooms and
+	 * sends it the messages published after its cursor in each room.
+	 *
+	 * @param userName the name of the user of the client
+	 * @param client   the client as registered with the RMI registry
+	 * @param cursors  the sequence number of the last message seen in each
+	 *                 chat room
+	 * @return the chat rooms that were resumed, the rooms that do not exist
+	 * (anymore) are left out, or a retry hint if the server is busy
+	 */
+	public JoinResult resumeSession(String userName, CommandsFromServer client, HashMap<String, Long> cursors)
+		{
+		if (!admission.enter())
+			return new JoinResult(admission.retryHint());
+		try
+			{
+			users.connect(userName, client);
+			HashMap<String, ChatServerInterface> resumed = new HashMap<String, ChatServerInterface>();
+			HashMap<String, Long> lastSequences = new HashMap<String, Long>();
+			for (Map.Entry<String, Long> cursor : cursors.entrySet())
+				{
+				ChatServer room = roomsByName.get(cursor.getKey());
+				if (room != null)
+					{
+					lastSequences.put(cursor.getKey(), room.resume(client, cursor.getValue()));
+					resumed.put(cursor.getKey(), room);
+					}
+				}
+			return new JoinResult(resumed, lastSequences);
+			}
+		finally
+			{
+			admission.leave();
+			}
+		}
+
+	/**
+	 * Registers a client to several chat rooms at once. A client already
+	 * registered to one of the rooms is not registered twice.
+	 *
+	 * @param client    the client as registered with the RMI registry
+	 * @param roomNames the names of the chat rooms to join
+	 * @return the chat rooms that were joined with the cursors from which the
+	 * client can resume them, the rooms that do not exist are left out, or a
+	 * retry hint if the server is busy
+	 */
+	public JoinResult joinRooms(CommandsFromServer client, Vector<String> roomNames)
+		{
+		if (!admission.enter())
+			return new JoinResult(admission.retryHint());
+		try
+			{
+			HashMap<String, ChatServerInterface> joined = new HashMap<String, ChatServerInterface>();
+			HashMap<String, Long> lastSequences = new HashMap<String, Long>();
+			for (String roomName : roomNames)
+				{
+				ChatServer room = roomsByName.get(roomName);
+				if (room != null)
+					{
+					// a negative cursor registers the client without replaying messages
+					lastSequences.put(roomName, room.resume(client, -1));
+					joined.put(roomName, room);
+					}
+				}
+			return new JoinResult(joined, lastSequences);
+			}
+		finally
+			{
+			admission.leave();
+			}
+		}
+
+	/**
+	 * Adds a client of the user <code>userName</code> to the user directory.
+	 *
+	 * @param userName the name of the user
+	 * @param client   the client as registered with the RMI registry
+	 */
+	public void connectUser(String userName, CommandsFromServer client)
+		{
+		users.connect(userName, client);
+		System.out.println("user " + userName + " is connected from " + client);
+		}
+
+	/**
+	 * Removes a client of the user <code>userName</code> from the user
+	 * directory.
+	 *
+	 * @param userName the name of the user
+	 * @param client   the client as registered with the RMI registry
+	 */
+	public void disconnectUser(String userName, CommandsFromServer client)
+		{
+		users.disconnect(userName, client);
+		System.out.println("user " + userName + " is disconnected from " + client);
+		}
+
+	/**
+	 * Sends a message to all the clients of the user <code>recipient</code>.
+	 * The delivery is queued on the {@link DeliveryScheduler}, in a queue of
+	 * direct messages of its own for each recipient. Clients that cannot be reached are removed
+	 * from the user directory.
+	 *
+	 * @param message   the message to send
+	 * @param publisher the name of the user sending the message
+	 * @param recipient the name of the user receiving the message
+	 * @return <code>true</code> if the recipient is connected,
+	 * <code>false</code> otherwise.
+	 */
+	public boolean sendDirect(final String message, final String publisher, final String recipient)
+		{
+		final CommandsFromServer[] clients = users.lookup(recipient);
+		if (clients.length == 0)
+			return false;
+
+		DeliveryScheduler.getInstance().submitDirect(recipient, clients.length, new Runnable()
+			{
+			public void run()
+				{
+				for (CommandsFromServer client : clients)
+					{
+					try
+						{
+						client.receiveDirectMsg(publisher, message);
+						}
+					catch (RemoteException e)
+						{
+						users.disconnect(recipient, client);
+						System.out.println("(RemoteException) Cannot send direct message to client");
+						}
+					}
+				}
+			});
+		return true;
+		}
+
+	/**
+	 * Getter method for the scheduling latency of the deliveries of a chat
+	 * room.
+	 *
+	 * @param roomName the name of the chat room
+	 * @return a snapshot of the latency of the room
+	 */
+	public DeliveryScheduler.Latency getDeliveryLatency(String roomName)
+		{
+		return DeliveryScheduler.getInstance().getLatency(roomName);
+		}
+
+	/**
+	 * Resets the maximum delivery latency of all the chat rooms, e.g. at the
+	 * start of a measurement period.
+	 */
+	public void resetDeliveryLatency()
+		{
+		DeliveryScheduler.getInstance().resetMaxLatency();
+		}
+
+	/**
+	 * Finds the chat rooms with the most messages over a time window.
+	 *
+	 * @param window the time window
+	 * @param top    the number of rooms wanted
+	 * @return the hottest rooms, hottest first
+	 */
+	public List<TrafficMonitor.HotSpot> getHottestRooms(TrafficMonitor.Window window, int top)
+		{
+		return TrafficMonitor.getInstance().getHottestRooms(window, top);
+		}
+
+	/**
+	 * Finds the publishers with the most messages over a time window.
+	 *
+	 * @param window the time window
+	 * @param top    the number of publishers wanted
+	 * @return the hottest publishers, hottest first
+	 */
+	public List<TrafficMonitor.HotSpot> getHottestPublishers(TrafficMonitor.Window window, int top)
+		{
+		return TrafficMonitor.getInstance().getHottestPublishers(window, top);
+		}
+
 	public static void main(String[] args)
 		{
 			//Q1
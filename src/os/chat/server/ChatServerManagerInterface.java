@@ -1,7 +1,11 @@
 package os.chat.server;
 
+import os.chat.client.CommandsFromServer;
+
 import java.rmi.Remote;
 import java.rmi.RemoteException;
+import java.util.HashMap;
+import java.util.List;
 import java.util.Vector;
 
 /**
@@ -16,6 +20,15 @@ import java.util.Vector;
  * for the second part:
  * <ul>
  * <li> creating new rooms
+ * <li> sending direct messages between users
+ * <li> resuming the session of a client after a disconnection
+ * <li> joining several rooms at once
+ * </ul>
+ * <p>
+ * for the operators of the server:
+ * <ul>
+ * <li> reading the delivery latency of the rooms
+ * <li> finding the rooms and publishers driving the load
  * </ul>
  * <p>
  * (deletion of rooms not required)
@@ -37,5 +50,87 @@ public interface ChatServerManagerInterface extends Remote
 	 * created, <code>false</code> otherwise.
 	 */
 	public boolean createRoom(String roomName) throws RemoteException;
+
+	/**
+	 * Adds a client of the user <code>userName</code> to the user directory,
+	 * so that it receives the direct messages sent to this user.
+	 * @param userName the name of the user
+	 * @param client the client as registered on the RMI registry
+	 */
+	public void connectUser(String userName, CommandsFromServer client) throws RemoteException;
+
+	/**
+	 * Removes a client of the user <code>userName</code> from the user
+	 * directory.
+	 * @param userName the name of the user
+	 * @param client the client as registered on the RMI registry
+	 */
+	public void disconnectUser(String userName, CommandsFromServer client) throws RemoteException;
+
+	/**
+	 * Sends a message to all the clients of the user <code>recipient</code>,
+	 * without going through a chat room.
+	 * @param message the message to send
+	 * @param publisher the name of the user sending the message
+	 * @param recipient the name of the user receiving the message
+	 * @return <code>true</code> if the recipient is connected,
+	 * <code>false</code> otherwise.
+	 */
+	public boolean sendDirect(String message, String publisher, String recipient) throws RemoteException;
+
+	/**
+	 * Resumes the session of a client after a disconnection, in a single
+	 * call: registers the client again to each of its chat rooms and sends it
+	 * the messages it missed in these rooms.
+	 * @param userName the name of the user of the client
+	 * @param client the client as registered on the RMI registry
+	 * @param cursors the sequence number of the last message seen in each
+	 * chat room (negative to skip the missed messages of a room)
+	 * @return the stubs of the chat rooms that were resumed, or a delay
+	 * after which to retry if the server is busy
+	 */
+	public JoinResult resumeSession(String userName, CommandsFromServer client,
+			HashMap<String, Long> cursors) throws RemoteException;
+
+	/**
+	 * Registers a client to several chat rooms in a single call.
+	 * @param client the client as registered on the RMI registry
+	 * @param roomNames the names of the chat rooms to join
+	 * @return the stubs of the chat rooms that were joined, or a delay after
+	 * which to retry if the server is busy
+	 */
+	public JoinResult joinRooms(CommandsFromServer client, Vector<String> roomNames) throws RemoteException;
+
+	/**
+	 * Getter method for the scheduling latency of the deliveries of a chat
+	 * room, i.e. how long its messages wait before being sent.
+	 * @param roomName the name of the chat room
+	 * @return a snapshot of the latency of the room
+	 */
+	public DeliveryScheduler.Latency getDeliveryLatency(String roomName) throws RemoteException;
+
+	/**
+	 * Resets the maximum delivery latency of all the chat rooms.
+	 */
+	public void resetDeliveryLatency() throws RemoteException;
+
+	/**
+	 * Finds the chat rooms with the most messages over a time window.
+	 * @param window the time window
+	 * @param top the number of rooms wanted, at most
+	 * {@link TrafficMonitor#MAX_TOP}
+	 * @return the estimated traffic of the hottest rooms, hottest first
+	 */
+	public List<TrafficMonitor.HotSpot> getHottestRooms(TrafficMonitor.Window window, int top) throws RemoteException;
+
+	/**
+	 * Finds the publishers with the most messages over a time window.
+	 * @param window the time window
+	 * @param top the number of publishers wanted, at most
+	 * {@link TrafficMonitor#MAX_TOP}
+	 * @return the estimated traffic of the hottest publishers, hottest first
+	 */
+	public List<TrafficMonitor.HotSpot> getHottestPublishers(TrafficMonitor.Window window, int top)
+			throws RemoteException;
 	
 }
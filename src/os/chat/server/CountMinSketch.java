@@ -0,0 +1,103 @@
+package os.chat.server;
+
+import java.util.Arrays;
+import java.util.Random;
+
+/**
+ * A count-min sketch: approximate counters for an unbounded set of keys in a
+ * fixed amount of memory.
+ * <p>
+ * Each key is hashed to one counter in each of <code>depth</code> rows, and
+ * its count is estimated by the smallest of these counters. An estimate is
+ * never below the real count, and is above it by at most a small fraction of
+ * the total count with high probability.
+ * <p>
+ * The keys are names chosen by the clients, so each row hashes the
+ * characters of the key from a random seed of its own: keys colliding in one
+ * row, e.g. strings with the same {@link String#hashCode()}, do not collide
+ * in the others, and a client cannot choose a name sharing the counters of
+ * another one.
+ */
+public class CountMinSketch
+	{
+
+	private final long[][] counters;
+	private final int[] seeds;
+	private final int mask;
+
+	/**
+	 * Constructs an empty sketch.
+	 *
+	 * @param depth  the number of rows
+	 * @param width  the number of counters per row, a power of two
+	 * @param random the generator of the seeds of the rows
+	 */
+	public CountMinSketch(int depth, int width, Random random)
+		{
+		this.counters = new long[depth][width];
+		this.seeds = new int[depth];
+		for (int row = 0; row < depth; row++)
+			seeds[row] = random.nextInt();
+		this.mask = width - 1;
+		}
+
+	/**
+	 * Adds <code>count</code> to the counter of <code>key</code>.
+	 *
+	 * @param key   the key
+	 * @param count the amount to add
+	 * @return the new estimate of the count of the key
+	 */
+	public long add(String key, long count)
+		{
+		long estimate = Long.MAX_VALUE;
+		for (int row = 0; row < counters.length; row++)
+			{
+			int column = column(key, row);
+			counters[row][column] += count;
+			estimate = Math.min(estimate, counters[row][column]);
+			}
+		return estimate;
+		}
+
+	/**
+	 * @param key the key
+	 * @return the estimate of the count of the key
+	 */
+	public long estimate(String key)
+		{
+		long estimate = Long.MAX_VALUE;
+		for (int row = 0; row < counters.length; row++)
+			estimate = Math.min(estimate, counters[row][column(key, row)]);
+		return estimate;
+		}
+
+	/**
+	 * Resets all the counters to zero.
+	 */
+	public void clear()
+		{
+		for (long[] row : counters)
+			Arrays.fill(row, 0);
+		}
+
+	/**
+	 * Hashes the characters of a key from the seed of a row, so that the
+	 * rows collide independently.
+	 */
+	private int column(String key, int row)
+		{
+		int h = seeds[row];
+		for (int i = 0; i < key.length(); i++)
+			{
+			h = (h ^ key.charAt(i)) * 0x01000193;
+			h ^= h >>> 15;
+			}
+		h ^= key.length();
+		h ^= h >>> 16;
+		h *= 0x85ebca6b;
+		h ^= h >>> 13;
+		h *= 0xc2b2ae35;
+		return (h ^ (h >>> 16)) & mask;
+		}
+	}
@@ -0,0 +1,142 @@
+package os.chat.server;
+
+/**
+ * The message ids recently published by one client in a chat room, used to
+ * drop the messages that a client sends again after a failed call.
+ * <p>
+ * The ids are kept in two generations of small open-addressing tables of
+ * <code>long</code>s. New ids go to the current generation; when it is full
+ * or older than half the window, it becomes the previous generation and the
+ * old previous generation is dropped as a whole. An id is therefore
+ * remembered for at least half the window and at most the whole window (or
+ * <code>capacity</code> ids). A generation starts with a table of
+ * {@link #INITIAL_SLOTS} slots, grown as ids arrive, so a client that sends a
+ * few messages costs a few words; the tables never grow beyond twice
+ * <code>capacity</code>.
+ * <p>
+ * The id <code>0</code> means "no id" and is never considered a duplicate.
+ */
+public class DedupWindow
+	{
+
+	/**
+	 * The number of slots of the table of a new generation.
+	 */
+	static final int INITIAL_SLOTS = 8;
+
+	private final long windowMillis;
+	private final int capacity;
+	private final int maxSlots;
+
+	private long[] current;
+	// null until the first rotation, and when the previous generation expired
+	private long[] previous;
+	private int currentSize;
+	private long currentStart;
+	private long lastSeen;
+
+	/**
+	 * Constructs an empty window.
+	 *
+	 * @param windowMillis how long an id is remembered, in milliseconds
+	 * @param capacity     how many ids a generation holds
+	 * @param now          the current time, in milliseconds
+	 */
+	public DedupWindow(long windowMillis, int capacity, long now)
+		{
+		this.windowMillis = windowMillis;
+		this.capacity = capacity;
+		this.maxSlots = Math.max(INITIAL_SLOTS, Integer.highestOneBit(Math.max(2, capacity) * 2 - 1) << 1);
+		this.current = new long[INITIAL_SLOTS];
+		this.currentStart = now;
+		this.lastSeen = now;
+		}
+
+	/**
+	 * Records a message id.
+	 *
+	 * @param id  the id of the message
+	 * @param now the current time, in milliseconds
+	 * @return <code>true</code> if the id was not seen in the window,
+	 * <code>false</code> if the message is a duplicate
+	 */
+	public synchronized boolean firstSeen(long id, long now)
+		{
+		lastSeen = now;
+		if (id == 0)
+			return true;
+
+		if (now - currentStart >= windowMillis / 2 || currentSize >= capacity)
+			rotate(now);
+		if (contains(current, id) || (previous != null && contains(previous, id)))
+			return false;
+
+		// at most half full, so the probes stay short
+		if (2 * (currentSize + 1) > current.length && current.length < maxSlots)
+			current = grow(current);
+		insert(current, id);
+		currentSize++;
+		return true;
+		}
+
+	/**
+	 * @return the number of slots of the tables, for the tests
+	 */
+	synchronized int slots()
+		{
+		return current.length + (previous == null ? 0 : previous.length);
+		}
+
+	/**
+	 * @param now the current time, in milliseconds
+	 * @return <code>true</code> if no message was recorded for a whole window,
+	 * i.e. the window can be dropped
+	 */
+	public synchronized boolean isIdle(long now)
+		{
+		return now - lastSeen >= windowMillis;
+		}
+
+	private void rotate(long now)
+		{
+		previous = now - currentStart >= windowMillis ? null : current;
+		current = new long[INITIAL_SLOTS];
+		currentSize = 0;
+		currentStart = now;
+		}
+
+	private static long[] grow(long[] table)
+		{
+		long[] grown = new long[table.length * 2];
+		for (long id : table)
+			if (id != 0)
+				insert(grown, id);
+		return grown;
+		}
+
+	private static void insert(long[] table, long id)
+		{
+		int mask = table.length - 1;
+		int i = hash(id) & mask;
+		while (table[i] != 0)
+			i = (i + 1) & mask;
+		table[i] = id;
+		}
+
+	private static boolean contains(long[] table, long id)
+		{
+		int mask = table.length - 1;
+		for (int i = hash(id) & mask; table[i] != 0; i = (i + 1) & mask)
+			{
+			if (table[i] == id)
+				return true;
+			}
+		return false;
+		}
+
+	private static int hash(long id)
+		{
+		long h = id * 0x9E3779B97F4A7C15L;
+		return (int) (h ^ (h >>> 32));
+		}
+	}
@@ -0,0 +1,30 @@
+package os.chat.server;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+
+/**
+ * JDK Flight Recorder event for the delivery of a message to one client of a
+ * chat room, i.e. one remote call to <code>receiveMsg</code>.
+ */
+@Name("os.chat.Delivery")
+@Label("Delivery")
+@Category({ "Chat", "Room" })
+@Description("A message delivered to a client of a chat room")
+public class DeliveryEvent extends jdk.jfr.Event
+	{
+
+	@Label("Room")
+	String room;
+
+	@Label("Subscriber")
+	String subscriber;
+
+	@Label("Sequence")
+	long sequence;
+
+	@Label("Outcome")
+	String outcome;
+	}
@@ -0,0 +1,435 @@
+package os.chat.server;
+
+import java.io.Serializable;
+import java.util.ArrayDeque;
+import java.util.HashMap;
+
+/**
+ * Schedules the delivery of published messages for all the
+ * {@link ChatServer}s.
+ * <p>
+ * Each room has its own FIFO queue of deliveries, so messages of a room are
+ * still delivered in the order they were published. A fixed pool of worker
+ * threads serves the rooms with a deficit round robin: every time a room gets
+ * its turn it may spend <code>QUANTUM * priority</code> delivery units (one
+ * unit per recipient of a message) before going back to the end of the ready
+ * list. A few very busy rooms can therefore not take all the threads and
+ * delay the messages of the quiet rooms.
+ * <p>
+ * The direct messages to a user have a queue of their own, of priority 1,
+ * in a namespace separate from the rooms. It is dropped as soon as it is
+ * empty, so the queues do not grow with the number of users ever messaged.
+ * <p>
+ * The priority of a room defaults to 1, or to the value of the system
+ * property <code>os.chat.priority.&lt;roomName&gt;</code>, and can be changed
+ * at any time with {@link #setPriority(String, int)}.
+ * <p>
+ * The quantum orders the deliveries but cannot interrupt one: a delivery
+ * blocked on an unresponsive client holds its thread until the RMI call
+ * fails. The {@link ChatServerManager} therefore bounds the RMI calls of the
+ * server with <code>os.chat.deliveryTimeout</code>, and the rooms queue their
+ * fan-out in small batches.
+ */
+public class DeliveryScheduler
+	{
+
+	/**
+	 * Number of delivery units a room of priority 1 may spend per turn.
+	 */
+	private static final int QUANTUM = 32;
+
+	/**
+	 * Weight of the last sample in the moving average of the latency.
+	 */
+	private static final double ALPHA = 0.1;
+
+	private static DeliveryScheduler instance = null;
+
+	/**
+	 * The queue of each room, by room name.
+	 */
+	private final HashMap<String, RoomQueue> rooms = new HashMap<String, RoomQueue>();
+
+	/**
+	 * The queues of direct messages with deliveries waiting, by recipient.
+	 */
+	private final HashMap<String, RoomQueue> direct = new HashMap<String, RoomQueue>();
+
+	private final Thread[] workers;
+
+	/**
+	 * The rooms that have deliveries waiting and are not being served.
+	 */
+	private final ArrayDeque<RoomQueue> ready = new ArrayDeque<RoomQueue>();
+
+	/**
+	 * Constructs the scheduler and starts <code>threads</code> worker threads.
+	 *
+	 * @param threads the number of delivery threads
+	 */
+	public DeliveryScheduler(int threads)
+		{
+		workers = new Thread[threads];
+		for (int i = 0; i < threads; i++)
+			{
+			workers[i] = new Thread(new Runnable()
+				{
+				public void run()
+					{
+					work();
+					}
+				}, "delivery-" + i);
+			workers[i].setDaemon(true);
+			workers[i].start();
+			}
+		}
+
+	/**
+	 * Retrieves the delivery scheduler shared by all the chat rooms. The
+	 * number of threads is given by the <code>os.chat.deliveryThreads</code>
+	 * system property, and is zero in the deterministic mode of the
+	 * {@link LocalTransport}.
+	 *
+	 * @return a reference to the singleton delivery scheduler instance
+	 */
+	public static synchronized DeliveryScheduler getInstance()
+		{
+		if (instance == null)
+			instance = new DeliveryScheduler(LocalTransport.isDeterministic() ? 0
+					: Integer.getInteger("os.chat.deliveryThreads", 2 * Runtime.getRuntime().availableProcessors()));
+
+		return instance;
+		}
+
+	/**
+	 * Stops the threads of the shared scheduler and drops it, see
+	 * {@link LocalTransport#clear()}. The deliveries still queued are lost.
+	 */
+	static synchronized void reset()
+		{
+		if (instance != null)
+			for (Thread worker : instance.workers)
+				worker.interrupt();
+		instance = null;
+		}
+
+	/**
+	 * Creates the queue of a new chat room, so that its priority can be set
+	 * before its first delivery.
+	 *
+	 * @param roomName the name of the chat room
+	 */
+	public synchronized void addRoom(String roomName)
+		{
+		getRoom(roomName);
+		}
+
+	/**
+	 * Queues a delivery for a chat room.
+	 *
+	 * @param roomName the name of the chat room
+	 * @param cost     the number of recipients of the delivery
+	 * @param delivery the fan-out to run
+	 */
+	public synchronized void submit(String roomName, int cost, Runnable delivery)
+		{
+		enqueue(getRoom(roomName), cost, delivery);
+		}
+
+	/**
+	 * Queues a delivery of direct messages to a user.
+	 *
+	 * @param recipient the name of the user receiving the messages
+	 * @param cost      the number of clients of the user
+	 * @param delivery  the fan-out to run
+	 */
+	public synchronized void submitDirect(String recipient, int cost, Runnable delivery)
+		{
+		RoomQueue queue = direct.get(recipient);
+		if (queue == null)
+			{
+			queue = new RoomQueue(1);
+			queue.recipient = recipient;
+			direct.put(recipient, queue);
+			}
+		enqueue(queue, cost, delivery);
+		}
+
+	private void enqueue(RoomQueue room, int cost, Runnable delivery)
+		{
+		room.tasks.add(new Task(delivery, Math.max(1, cost), ChatClock.nanos()));
+		if (!room.scheduled)
+			{
+			room.scheduled = true;
+			ready.add(room);
+			notify();
+			}
+		}
+
+	/**
+	 * Sets the priority of the chat room <code>roomName</code>, i.e. its share
+	 * of the delivery capacity relative to the other busy rooms. The operation
+	 * has no effect if the room does not exist.
+	 *
+	 * @param roomName the name of the chat room
+	 * @param priority the weight of the room, at least 1
+	 */
+	public synchronized void setPriority(String roomName, int priority)
+		{
+		RoomQueue room = rooms.get(roomName);
+		if (room != null)
+			room.priority = Math.max(1, priority);
+		}
+
+	/**
+	 * Getter method for the priority of a chat room.
+	 *
+	 * @param roomName the name of the chat room
+	 * @return the weight of the room, the configured one if the room does not
+	 * exist (yet)
+	 */
+	public synchronized int getPriority(String roomName)
+		{
+		RoomQueue room = rooms.get(roomName);
+		if (room == null)
+			return Math.max(1, Integer.getInteger("os.chat.priority." + roomName, 1));
+		return room.priority;
+		}
+
+	/**
+	 * Getter method for the scheduling latency of a chat room, i.e. the time
+	 * its deliveries waited in the queue before a thread started them.
+	 *
+	 * @param roomName the name of the chat room
+	 * @return a snapshot of the scheduling latency of the room, or
+	 * <code>null</code> if the room does not exist
+	 */
+	public synchronized Latency getLatency(String roomName)
+		{
+		RoomQueue room = rooms.get(roomName);
+		if (room == null)
+			return null;
+		return new Latency(room.delivered, (long) room.averageNanos, room.maxNanos, room.tasks.size());
+		}
+
+	/**
+	 * Resets the maximum latency of all the rooms, e.g. at the start of a
+	 * measurement period.
+	 */
+	public synchronized void resetMaxLatency()
+		{
+		for (RoomQueue room : rooms.values())
+			room.maxNanos = 0;
+		}
+
+	private RoomQueue getRoom(String roomName)
+		{
+		RoomQueue room = rooms.get(roomName);
+		if (room == null)
+			{
+			room = new RoomQueue(Math.max(1, Integer.getInteger("os.chat.priority." + roomName, 1)));
+			rooms.put(roomName, room);
+			}
+		return room;
+		}
+
+	/**
+	 * Runs the queued deliveries on the calling thread until there are none
+	 * left, in the same order as a single worker thread would. Meant for a
+	 * scheduler without threads, in deterministic tests.
+	 *
+	 * @return the number of deliveries run
+	 */
+	public int runUntilIdle()
+		{
+		int delivered = 0;
+		while (true)
+			{
+			RoomQueue room;
+			synchronized (this)
+				{
+				room = ready.poll();
+				if (room == null)
+					return delivered;
+				room.deficit += (long) QUANTUM * room.priority;
+				}
+			delivered += serve(room);
+			}
+		}
+
+	/**
+	 * Main loop of the worker threads: takes the next ready room and serves
+	 * it.
+	 */
+	private void work()
+		{
+		while (true)
+			{
+			RoomQueue room;
+			synchronized (this)
+				{
+				while (ready.isEmpty())
+					{
+					try
+						{
+						wait();
+						}
+					catch (InterruptedException e)
+						{
+						return;
+						}
+					}
+				room = ready.poll();
+				room.deficit += (long) QUANTUM * room.priority;
+				}
+			serve(room);
+			}
+		}
+
+	/**
+	 * Runs the deliveries of a room until it has spent its quantum or has
+	 * nothing left to send.
+	 */
+	private int serve(RoomQueue room)
+		{
+		int delivered = 0;
+		Task task;
+		while ((task = next(room)) != null)
+			{
+			try
+				{
+				task.delivery.run();
+				}
+			catch (RuntimeException e)
+				{
+				System.out.println("(RuntimeException) Cannot deliver the message");
+				e.printStackTrace();
+				}
+			delivered++;
+			}
+		return delivered;
+		}
+
+	/**
+	 * Takes the next delivery of <code>room</code> if the room can still
+	 * afford it. Otherwise gives the turn back: the room goes to the end of the
+	 * ready list if it has deliveries left.
+	 */
+	private synchronized Task next(RoomQueue room)
+		{
+		Task task = room.tasks.peek();
+		if (task == null)
+			{
+			room.deficit = 0;
+			room.scheduled = false;
+			if (room.recipient != null)
+				direct.remove(room.recipient);
+			return null;
+			}
+		if (task.cost > room.deficit)
+			{
+			ready.add(room);
+			notify();
+			return null;
+			}
+		room.tasks.poll();
+		room.deficit -= task.cost;
+
+		long waited = ChatClock.nanos() - task.enqueued;
+		room.averageNanos = room.delivered == 0 ? waited : (1 - ALPHA) * room.averageNanos + ALPHA * waited;
+		room.maxNanos = Math.max(room.maxNanos, waited);
+		room.delivered++;
+		return task;
+		}
+
+	/**
+	 * A snapshot of the scheduling latency of a chat room.
+	 */
+	public static class Latency implements Serializable
+		{
+		private static final long serialVersionUID = 1L;
+
+		private final long delivered;
+		private final long averageNanos;
+		private final long maxNanos;
+		private final int queued;
+
+		Latency(long delivered, long averageNanos, long maxNanos, int queued)
+			{
+			this.delivered = delivered;
+			this.averageNanos = averageNanos;
+			this.maxNanos = maxNanos;
+			this.queued = queued;
+			}
+
+		/**
+		 * @return the number of deliveries started for the room
+		 */
+		public long getDelivered()
+			{
+			return delivered;
+			}
+
+		/**
+		 * @return the moving average of the latency, in nanoseconds
+		 */
+		public long getAverageNanos()
+			{
+			return averageNanos;
+			}
+
+		/**
+		 * @return the maximum latency since the last reset, in nanoseconds
+		 */
+		public long getMaxNanos()
+			{
+			return maxNanos;
+			}
+
+		/**
+		 * @return the number of deliveries waiting in the queue of the room
+		 */
+		public int getQueued()
+			{
+			return queued;
+			}
+
+		public String toString()
+			{
+			return "delivered=" + delivered + " avg=" + averageNanos / 1000 + "us max=" + maxNanos / 1000
+					+ "us queued=" + queued;
+			}
+		}
+
+	private static class RoomQueue
+		{
+		final ArrayDeque<Task> tasks = new ArrayDeque<Task>();
+		// the user receiving the direct messages of the queue, null for a room
+		String recipient;
+		int priority;
+		long deficit;
+		boolean scheduled;
+		long delivered;
+		double averageNanos;
+		long maxNanos;
+
+		RoomQueue(int priority)
+			{
+			this.priority = priority;
+			}
+		}
+
+	private static class Task
+		{
+		final Runnable delivery;
+		final int cost;
+		final long enqueued;
+
+		Task(Runnable delivery, int cost, long enqueued)
+			{
+			this.delivery = delivery;
+			this.cost = cost;
+			this.enqueued = enqueued;
+			}
+		}
+	}
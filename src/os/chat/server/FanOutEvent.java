@@ -0,0 +1,41 @@
+package os.chat.server;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.Timespan;
+
+/**
+ * JDK Flight Recorder event for a fan-out task run by the
+ * {@link DeliveryScheduler}: the sending of one message to a batch of
+ * subscribers, or of the missed messages to a resuming client, with the time
+ * the task waited in the queue of its room.
+ */
+@Name("os.chat.FanOut")
+@Label("Fan-out")
+@Category({ "Chat", "Room" })
+@Description("A delivery task of a chat room, from its queue to its last client")
+public class FanOutEvent extends jdk.jfr.Event
+	{
+
+	@Label("Room")
+	String room;
+
+	@Label("Queueing Delay")
+	@Description("Time between the submission of the task and its start")
+	@Timespan(Timespan.NANOSECONDS)
+	long queueDelay;
+
+	@Label("Subscribers")
+	@Description("Number of clients the task sends to")
+	int subscribers;
+
+	@Label("Messages")
+	@Description("Number of messages the task sends to each client")
+	int messages;
+
+	@Label("Delivered")
+	@Description("Number of messages received by the clients")
+	int delivered;
+	}
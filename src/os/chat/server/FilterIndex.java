@@ -0,0 +1,117 @@
+package os.chat.server;
+
+import os.chat.client.CommandsFromServer;
+
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * The subscription filters of all the clients of a chat room, compiled into a
+ * single {@link KeywordMatcher}.
+ * <p>
+ * The keywords of all the filters are merged into one automaton, each keyword
+ * knowing which filters contain it. A message is scanned once, whatever the
+ * number of filters, and the clients accepting it are then known before any
+ * delivery starts. An index is immutable: the chat room builds a new one every
+ * time a filter changes.
+ */
+public class FilterIndex
+	{
+
+	/**
+	 * The index of a room without filters.
+	 */
+	public static final FilterIndex EMPTY = new FilterIndex(new HashMap<CommandsFromServer, SubscriptionFilter>());
+
+	// position of each filtered client in the arrays below
+	private final HashMap<CommandsFromServer, Integer> positions = new HashMap<CommandsFromServer, Integer>();
+	// allowed senders of each filtered client, including the client itself
+	private final List<Set<String>> senders;
+
+	private final KeywordMatcher matcher;
+
+	// filters containing each keyword
+	private final int[][] keywordFilters;
+
+	/**
+	 * Compiles the filters of a chat room.
+	 *
+	 * @param filters the filter of each client having one
+	 */
+	public FilterIndex(Map<CommandsFromServer, SubscriptionFilter> filters)
+		{
+		senders = new ArrayList<Set<String>>(filters.size());
+		HashMap<String, ArrayList<Integer>> keywords = new HashMap<String, ArrayList<Integer>>();
+		for (Map.Entry<CommandsFromServer, SubscriptionFilter> filter : filters.entrySet())
+			{
+			int position = positions.size();
+			positions.put(filter.getKey(), position);
+			// copied, since a client of the same JVM may still modify its filter
+			Set<String> allowed = new HashSet<String>(filter.getValue().getSenders());
+			if (filter.getValue().getOwner() != null)
+				allowed.add(filter.getValue().getOwner());
+			senders.add(allowed);
+			for (String keyword : filter.getValue().getKeywords())
+				{
+				ArrayList<Integer> owners = keywords.get(keyword);
+				if (owners == null)
+					{
+					owners = new ArrayList<Integer>();
+					keywords.put(keyword, owners);
+					}
+				owners.add(position);
+				}
+			}
+
+		String[] patterns = keywords.keySet().toArray(new String[0]);
+		keywordFilters = new int[patterns.length][];
+		for (int id = 0; id < patterns.length; id++)
+			{
+			ArrayList<Integer> owners = keywords.get(patterns[id]);
+			keywordFilters[id] = new int[owners.size()];
+			for (int i = 0; i < owners.size(); i++)
+				keywordFilters[id][i] = owners.get(i);
+			}
+		matcher = new KeywordMatcher(patterns);
+		}
+
+	/**
+	 * Selects the clients that must receive a message.
+	 *
+	 * @param clients   the clients registered to the chat room
+	 * @param message   the message to deliver
+	 * @param publisher the client from which the message originates
+	 * @return the clients without filter and those whose filter accepts the
+	 * message, in the order of <code>clients</code>
+	 */
+	public CommandsFromServer[] select(CommandsFromServer[] clients, String message, String publisher)
+		{
+		if (positions.isEmpty())
+			return clients;
+
+		// one pass over the message for all the keywords of the room
+		BitSet accepted = new BitSet(senders.size());
+		if (keywordFilters.length > 0)
+			{
+			BitSet found = new BitSet(keywordFilters.length);
+			matcher.match(message, found);
+			for (int id = found.nextSetBit(0); id >= 0; id = found.nextSetBit(id + 1))
+				for (int position : keywordFilters[id])
+					accepted.set(position);
+			}
+
+		ArrayList<CommandsFromServer> selected = new ArrayList<CommandsFromServer>(clients.length);
+		for (CommandsFromServer client : clients)
+			{
+			Integer position = positions.get(client);
+			if (position == null || accepted.get(position) || senders.get(position).contains(publisher))
+				selected.add(client);
+			}
+		return selected.toArray(new CommandsFromServer[0]);
+		}
+	}
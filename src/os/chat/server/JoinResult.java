@@ -0,0 +1,80 @@
+package os.chat.server;
+
+import java.io.Serializable;
+import java.util.HashMap;
+
+/**
+ * The answer of the {@link ChatServerManager} to a client joining or resuming
+ * several chat rooms at once: either the stubs of the chat rooms joined, or a
+ * delay after which the client should try again because the server is busy.
+ */
+public class JoinResult implements Serializable
+	{
+
+	private static final long serialVersionUID = 1L;
+
+	private final HashMap<String, ChatServerInterface> rooms;
+	private final HashMap<String, Long> cursors;
+	private final long retryAfterMillis;
+
+	/**
+	 * Constructs the result of an admitted request.
+	 *
+	 * @param rooms   the chat rooms joined, by name
+	 * @param cursors the sequence number of the last message published in
+	 *                each chat room before the client was registered
+	 */
+	public JoinResult(HashMap<String, ChatServerInterface> rooms, HashMap<String, Long> cursors)
+		{
+		this.rooms = rooms;
+		this.cursors = cursors;
+		this.retryAfterMillis = 0;
+		}
+
+	/**
+	 * Constructs the result of a request turned away.
+	 *
+	 * @param retryAfterMillis the delay before retrying, in milliseconds
+	 */
+	public JoinResult(long retryAfterMillis)
+		{
+		this.rooms = new HashMap<String, ChatServerInterface>();
+		this.cursors = new HashMap<String, Long>();
+		this.retryAfterMillis = retryAfterMillis;
+		}
+
+	/**
+	 * @return <code>true</code> if the request was served,
+	 * <code>false</code> if the client should retry later
+	 */
+	public boolean isAdmitted()
+		{
+		return retryAfterMillis == 0;
+		}
+
+	/**
+	 * @return the stubs of the chat rooms joined, by name
+	 */
+	public HashMap<String, ChatServerInterface> getRooms()
+		{
+		return rooms;
+		}
+
+	/**
+	 * @return the sequence number of the last message published in each chat
+	 * room joined before the client was registered, by name
+	 */
+	public HashMap<String, Long> getCursors()
+		{
+		return cursors;
+		}
+
+	/**
+	 * @return the delay before retrying, in milliseconds, <code>0</code> if
+	 * the request was served
+	 */
+	public long getRetryAfterMillis()
+		{
+		return retryAfterMillis;
+		}
+	}
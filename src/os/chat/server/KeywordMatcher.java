@@ -0,0 +1,186 @@
+package os.chat.server;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * A multi-pattern matcher (Aho-Corasick automaton) finding in one pass over a
+ * text which of a set of keywords it contains.
+ * <p>
+ * The automaton is built once from the keywords and is then immutable, so it
+ * can be shared between threads. Matching ignores case, as folded by
+ * {@link #fold(String)}, and a keyword only matches as a whole word: a
+ * keyword starting (or ending) with a letter or a digit must not be preceded
+ * (or followed) by a letter or a digit.
+ */
+public class KeywordMatcher
+	{
+
+	// transitions of each state, sorted by character
+	private final char[][] labels;
+	private final int[][] targets;
+	private final int[] fail;
+
+	// keywords ending in each state, including those of the fail states
+	private final int[][] outputs;
+
+	private final int[] lengths;
+	private final boolean[] wordStart;
+	private final boolean[] wordEnd;
+
+	/**
+	 * Builds the automaton of the given keywords. The id of a keyword is its
+	 * index in <code>keywords</code>.
+	 *
+	 * @param keywords the keywords to look for, none of them empty
+	 */
+	public KeywordMatcher(String[] keywords)
+		{
+		lengths = new int[keywords.length];
+		wordStart = new boolean[keywords.length];
+		wordEnd = new boolean[keywords.length];
+
+		// build the trie
+		ArrayList<TreeMap<Character, Integer>> trie = new ArrayList<TreeMap<Character, Integer>>();
+		ArrayList<int[]> ends = new ArrayList<int[]>();
+		trie.add(new TreeMap<Character, Integer>());
+		ends.add(new int[0]);
+		for (int id = 0; id < keywords.length; id++)
+			{
+			String keyword = fold(keywords[id]);
+			lengths[id] = keyword.length();
+			wordStart[id] = Character.isLetterOrDigit(keyword.charAt(0));
+			wordEnd[id] = Character.isLetterOrDigit(keyword.charAt(keyword.length() - 1));
+
+			int state = 0;
+			for (int i = 0; i < keyword.length(); i++)
+				{
+				Integer next = trie.get(state).get(keyword.charAt(i));
+				if (next == null)
+					{
+					next = trie.size();
+					trie.get(state).put(keyword.charAt(i), next);
+					trie.add(new TreeMap<Character, Integer>());
+					ends.add(new int[0]);
+					}
+				state = next;
+				}
+			int[] end = ends.get(state);
+			end = Arrays.copyOf(end, end.length + 1);
+			end[end.length - 1] = id;
+			ends.set(state, end);
+			}
+
+		int states = trie.size();
+		labels = new char[states][];
+		targets = new int[states][];
+		for (int state = 0; state < states; state++)
+			{
+			TreeMap<Character, Integer> edges = trie.get(state);
+			labels[state] = new char[edges.size()];
+			targets[state] = new int[edges.size()];
+			int i = 0;
+			for (Map.Entry<Character, Integer> edge : edges.entrySet())
+				{
+				labels[state][i] = edge.getKey();
+				targets[state][i] = edge.getValue();
+				i++;
+				}
+			}
+
+		// compute the fail links breadth first, so the fail state of a state
+		// always has its outputs complete when the state is reached
+		fail = new int[states];
+		outputs = new int[states][];
+		outputs[0] = ends.get(0);
+		ArrayDeque<Integer> queue = new ArrayDeque<Integer>();
+		for (int child : targets[0])
+			{
+			fail[child] = 0;
+			outputs[child] = ends.get(child);
+			queue.add(child);
+			}
+		while (!queue.isEmpty())
+			{
+			int state = queue.poll();
+			for (int i = 0; i < labels[state].length; i++)
+				{
+				int child = targets[state][i];
+				fail[child] = step(fail[state], labels[state][i]);
+				int[] own = ends.get(child);
+				int[] inherited = outputs[fail[child]];
+				int[] all = Arrays.copyOf(own, own.length + inherited.length);
+				System.arraycopy(inherited, 0, all, own.length, inherited.length);
+				outputs[child] = all;
+				queue.add(child);
+				}
+			}
+		}
+
+	/**
+	 * Finds the keywords contained in <code>text</code>.
+	 *
+	 * @param text  the text to scan
+	 * @param found the set in which the ids of the keywords found are added
+	 */
+	public void match(CharSequence text, BitSet found)
+		{
+		int state = 0;
+		for (int i = 0; i < text.length(); i++)
+			{
+			state = step(state, Character.toLowerCase(text.charAt(i)));
+			for (int id : outputs[state])
+				{
+				int start = i - lengths[id] + 1;
+				if (wordStart[id] && start > 0 && Character.isLetterOrDigit(text.charAt(start - 1)))
+					continue;
+				if (wordEnd[id] && i + 1 < text.length() && Character.isLetterOrDigit(text.charAt(i + 1)))
+					continue;
+				found.set(id);
+				}
+			}
+		}
+
+	/**
+	 * Folds the case of a keyword the way the text is folded while matching:
+	 * each character is lowered on its own, whatever the default locale. The
+	 * result has the length of <code>keyword</code>, which
+	 * {@link String#toLowerCase()} does not guarantee (e.g. for
+	 * <code>"\u0130"</code>).
+	 *
+	 * @param keyword the keyword
+	 * @return the keyword in lower case
+	 */
+	public static String fold(String keyword)
+		{
+		char[] folded = new char[keyword.length()];
+		for (int i = 0; i < folded.length; i++)
+			folded[i] = Character.toLowerCase(keyword.charAt(i));
+		return new String(folded);
+		}
+
+	/**
+	 * @return the number of states of the automaton
+	 */
+	public int size()
+		{
+		return labels.length;
+		}
+
+	private int step(int state, char c)
+		{
+		while (true)
+			{
+			int i = Arrays.binarySearch(labels[state], c);
+			if (i >= 0)
+				return targets[state][i];
+			if (state == 0)
+				return 0;
+			state = fail[state];
+			}
+		}
+	}
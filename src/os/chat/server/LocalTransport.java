@@ -0,0 +1,121 @@
+package os.chat.server;
+
+import java.rmi.Remote;
+import java.util.Random;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * An in-process registry linking the chat clients to the
+ * {@link ChatServerManager} and the {@link ChatServer}s running in the same
+ * JVM.
+ * <p>
+ * The servers bind themselves here under the same names as in the RMI
+ * registry, and the clients look here first: a client that finds its server
+ * calls it directly through the same interfaces, without sockets nor
+ * serialization.
+ * <p>
+ * In deterministic mode, meant for tests, nothing is exported through RMI,
+ * no thread is started by the servers or the clients, the fan-outs are run
+ * by {@link #runUntilIdle()} on the calling thread, the random numbers come
+ * from seeded generators (see {@link #newRandom()}) and the room catalog is
+ * kept in memory unless <code>os.chat.catalog</code> is set. Together with a
+ * manual {@link ChatClock}, runs are then reproducible. Changing the mode
+ * resets the shared state of the server, see {@link #clear()}.
+ */
+public class LocalTransport
+	{
+
+	private static final ConcurrentHashMap<String, Remote> bound = new ConcurrentHashMap<String, Remote>();
+
+	private static volatile boolean deterministic = false;
+
+	// the seed of the next generator made in deterministic mode
+	private static final AtomicLong nextSeed = new AtomicLong(Long.getLong("os.chat.seed", 0));
+
+	/**
+	 * Binds an object under <code>name</code>, replacing any previous binding.
+	 *
+	 * @param name   the name, as in the RMI registry
+	 * @param object the object to bind
+	 */
+	public static void bind(String name, Remote object)
+		{
+		bound.put(name, object);
+		}
+
+	/**
+	 * Looks up an object bound in this JVM.
+	 *
+	 * @param name the name, as in the RMI registry
+	 * @return the object, or <code>null</code> if nothing is bound under
+	 * <code>name</code> in this JVM
+	 */
+	public static Remote lookup(String name)
+		{
+		return bound.get(name);
+		}
+
+	/**
+	 * Removes all the bindings and resets the shared state of the server, e.g.
+	 * between two tests: the manager, the delivery scheduler (stopping its
+	 * threads), the message arena, the traffic statistics and the seeds. The
+	 * next server created starts from scratch. Objects already exported
+	 * through RMI stay exported.
+	 */
+	public static void clear()
+		{
+		bound.clear();
+		ChatServerManager.reset();
+		DeliveryScheduler.reset();
+		MessageArena.reset();
+		TrafficMonitor.reset();
+		nextSeed.set(Long.getLong("os.chat.seed", 0));
+		}
+
+	/**
+	 * Turns the deterministic mode on or off. Changing the mode calls
+	 * {@link #clear()}, so no server created in the other mode is kept.
+	 *
+	 * @param enabled <code>true</code> for the deterministic mode
+	 */
+	public static void setDeterministic(boolean enabled)
+		{
+		if (deterministic != enabled)
+			{
+			deterministic = enabled;
+			clear();
+			}
+		}
+
+	/**
+	 * Makes a random number generator: seeded in deterministic mode, in the
+	 * order of the calls from the <code>os.chat.seed</code> system property
+	 * (0 by default), unseeded otherwise.
+	 *
+	 * @return a new generator
+	 */
+	public static Random newRandom()
+		{
+		return deterministic ? new Random(nextSeed.getAndIncrement()) : new Random();
+		}
+
+	/**
+	 * @return <code>true</code> in deterministic mode
+	 */
+	public static boolean isDeterministic()
+		{
+		return deterministic;
+		}
+
+	/**
+	 * Runs all the queued fan-outs on the calling thread, including those
+	 * queued while running, in the order of the {@link DeliveryScheduler}.
+	 *
+	 * @return the number of deliveries run
+	 */
+	public static int runUntilIdle()
+		{
+		return DeliveryScheduler.getInstance().runUntilIdle();
+		}
+	}
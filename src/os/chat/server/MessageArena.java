@@ -0,0 +1,159 @@
+package os.chat.server;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Off-heap storage for the history of all the chat rooms.
+ * <p>
+ * Messages are encoded in UTF-8 and appended to a ring of direct
+ * {@link ByteBuffer} regions, outside of the Java heap. When the current
+ * region is full the writer moves to the next one, evicting at once all the
+ * messages it held. A message is identified by an address made of the
+ * sequence number of its region (upper 32 bits) and its offset in the region
+ * (lower 32 bits), so a stale address is detected without any bookkeeping.
+ * The heap used by the history therefore does not depend on the number or
+ * the size of the messages retained.
+ * <p>
+ * A record is: the sequence number of the message (<code>long</code>), the
+ * length and bytes of the publisher name, the length and bytes of the
+ * message.
+ */
+public class MessageArena
+	{
+
+	private static MessageArena instance = null;
+
+	private final ByteBuffer[] regions;
+	private final int regionSize;
+
+	// sequence number of the region being written, and position in it
+	private long writeRegion;
+	private int writeOffset;
+
+	/**
+	 * Constructs an arena. The regions are allocated the first time they are
+	 * written.
+	 *
+	 * @param regionCount the number of regions
+	 * @param regionSize  the size of a region, in bytes
+	 */
+	public MessageArena(int regionCount, int regionSize)
+		{
+		this.regions = new ByteBuffer[regionCount];
+		this.regionSize = regionSize;
+		}
+
+	/**
+	 * Retrieves the arena shared by all the chat rooms. Its size is given by
+	 * the <code>os.chat.arena.regions</code> and
+	 * <code>os.chat.arena.regionSize</code> system properties.
+	 *
+	 * @return a reference to the singleton arena instance
+	 */
+	public static synchronized MessageArena getInstance()
+		{
+		if (instance == null)
+			instance = new MessageArena(Integer.getInteger("os.chat.arena.regions", 16),
+					Integer.getInteger("os.chat.arena.regionSize", 4 * 1024 * 1024));
+
+		return instance;
+		}
+
+	/**
+	 * Drops the shared arena, see {@link LocalTransport#clear()}.
+	 */
+	static synchronized void reset()
+		{
+		instance = null;
+		}
+
+	/**
+	 * Stores a message.
+	 *
+	 * @param sequence     the sequence number of the message in its chat room
+	 * @param messageBytes the message, encoded in UTF-8
+	 * @param publisher    the client from which the message originates
+	 * @return the address of the message, or <code>-1</code> if the message
+	 * is larger than a region
+	 */
+	public synchronized long append(long sequence, byte[] messageBytes, String publisher)
+		{
+		byte[] publisherBytes = publisher.getBytes(StandardCharsets.UTF_8);
+		int length = 8 + 4 + publisherBytes.length + 4 + messageBytes.length;
+		if (length > regionSize)
+			return -1;
+
+		if (writeOffset + length > regionSize)
+			{
+			// move to the next region, dropping all the messages it held
+			writeRegion++;
+			writeOffset = 0;
+			}
+		ByteBuffer region = region(writeRegion);
+		long address = (writeRegion << 32) | writeOffset;
+		region.position(writeOffset);
+		region.putLong(sequence);
+		region.putInt(publisherBytes.length);
+		region.put(publisherBytes);
+		region.putInt(messageBytes.length);
+		region.put(messageBytes);
+		writeOffset += length;
+		return address;
+		}
+
+	/**
+	 * Reads a message back.
+	 *
+	 * @param address the address returned by {@link #append}
+	 * @return the message, or <code>null</code> if it has been evicted
+	 */
+	public synchronized RoomHistory.Entry read(long address)
+		{
+		if (!contains(address))
+			return null;
+
+		ByteBuffer region = regions[(int) ((address >>> 32) % regions.length)];
+		region.position((int) address);
+		long sequence = region.getLong();
+		String publisher = readString(region);
+		String message = readString(region);
+		return new RoomHistory.Entry(sequence, message, publisher);
+		}
+
+	/**
+	 * @param address the address returned by {@link #append}
+	 * @return <code>true</code> if the message has not been evicted
+	 */
+	public synchronized boolean contains(long address)
+		{
+		return address >= 0 && (address >>> 32) > writeRegion - regions.length;
+		}
+
+	/**
+	 * @return the number of bytes allocated outside of the heap
+	 */
+	public synchronized long getAllocatedBytes()
+		{
+		long allocated = 0;
+		for (ByteBuffer region : regions)
+			if (region != null)
+				allocated += region.capacity();
+		return allocated;
+		}
+
+	private static String readString(ByteBuffer region)
+		{
+		byte[] bytes = new byte[region.getInt()];
+		region.get(bytes);
+		return new String(bytes, StandardCharsets.UTF_8);
+		}
+
+	private ByteBuffer region(long sequence)
+		{
+		int index = (int) (sequence % regions.length);
+		if (regions[index] == null)
+			regions[index] = ByteBuffer.allocateDirect(regionSize);
+		return regions[index];
+		}
+	}
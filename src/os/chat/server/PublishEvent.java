@@ -0,0 +1,31 @@
+package os.chat.server;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+
+/**
+ * JDK Flight Recorder event for {@link ChatServer#publish(String, String, long)}:
+ * the time taken to accept a message and queue its fan-out.
+ */
+@Name("os.chat.Publish")
+@Label("Publish")
+@Category({ "Chat", "Room" })
+@Description("A message published in a chat room")
+public class PublishEvent extends jdk.jfr.Event
+	{
+
+	@Label("Room")
+	String room;
+
+	@Label("Publisher")
+	String publisher;
+
+	@Label("Subscribers")
+	@Description("Number of clients the message is queued for")
+	int subscribers;
+
+	@Label("Outcome")
+	String outcome;
+	}
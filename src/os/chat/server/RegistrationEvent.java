@@ -0,0 +1,31 @@
+package os.chat.server;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+
+/**
+ * JDK Flight Recorder event for a client registering to, unregistering from or
+ * resuming a chat room.
+ */
+@Name("os.chat.Registration")
+@Label("Registration")
+@Category({ "Chat", "Room" })
+@Description("A client registered to or unregistered from a chat room")
+public class RegistrationEvent extends jdk.jfr.Event
+	{
+
+	@Label("Room")
+	String room;
+
+	@Label("Action")
+	String action;
+
+	@Label("Subscribers")
+	@Description("Number of clients registered to the room afterwards")
+	int subscribers;
+
+	@Label("Outcome")
+	String outcome;
+	}
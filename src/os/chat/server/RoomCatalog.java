@@ -0,0 +1,152 @@
+package os.chat.server;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.Collection;
+import java.util.Vector;
+
+/**
+ * The persistent catalog of chat rooms created on the {@link ChatServerManager}.
+ * <p>
+ * The catalog is stored as a compact binary snapshot (a small header followed
+ * by the room names) so that it can be loaded in one read when the server
+ * restarts. The snapshot is rewritten to a temporary file and moved in place,
+ * so a crash while saving never leaves a truncated catalog behind. A catalog
+ * without file, as in the deterministic mode of the {@link LocalTransport},
+ * keeps nothing.
+ */
+public class RoomCatalog
+	{
+
+	private static final int MAGIC = 0x43524d53; // "CRMS"
+	private static final int VERSION = 1;
+
+	/**
+	 * The longest room name kept, in characters: far below the 65535 bytes
+	 * a name can take in the snapshot.
+	 */
+	public static final int MAX_NAME_LENGTH = 256;
+
+	private final File file;
+
+	/**
+	 * Constructs a catalog backed by the snapshot file <code>file</code>.
+	 *
+	 * @param file the snapshot file (it does not need to exist yet), or
+	 *             <code>null</code> for a catalog that keeps nothing
+	 */
+	public RoomCatalog(File file)
+		{
+		this.file = file;
+		}
+
+	/**
+	 * @return <code>true</code> if there is a snapshot file, readable or not
+	 */
+	public boolean exists()
+		{
+		return file != null && file.exists();
+		}
+
+	/**
+	 * @param roomName a room name
+	 * @return <code>true</code> if the name can be saved in the catalog
+	 */
+	public static boolean isValidName(String roomName)
+		{
+		return roomName != null && roomName.length() <= MAX_NAME_LENGTH;
+		}
+
+	/**
+	 * Loads the room names from the snapshot file. A snapshot is loaded whole
+	 * or not at all: a truncated or unknown snapshot is an error, never a
+	 * shorter catalog.
+	 *
+	 * @return the room names in creation order, or an empty Vector if there
+	 * is no snapshot yet
+	 * @throws IOException if the snapshot cannot be read or is corrupt
+	 */
+	public Vector<String> load() throws IOException
+		{
+		Vector<String> rooms = new Vector<String>();
+		if (!exists())
+			return rooms;
+
+		try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file))))
+			{
+			if (in.readInt() != MAGIC || in.readInt() != VERSION)
+				throw new IOException("Unknown room catalog format in " + file);
+			int count = in.readInt();
+			if (count < 0)
+				throw new IOException("Corrupt room catalog in " + file);
+			for (int i = 0; i < count; i++)
+				rooms.add(in.readUTF());
+			if (in.read() != -1)
+				throw new IOException("Trailing data in the room catalog " + file);
+			}
+		return rooms;
+		}
+
+	/**
+	 * Moves an unreadable snapshot aside, so that it is kept for inspection
+	 * and not overwritten by the next {@link #save(Collection)}.
+	 *
+	 * @return the file the snapshot was moved to
+	 * @throws IOException if the snapshot cannot be moved
+	 */
+	public File setAside() throws IOException
+		{
+		File aside = new File(file.getPath() + ".corrupt-" + ChatClock.millis());
+		Files.move(file.toPath(), aside.toPath());
+		return aside;
+		}
+
+	/**
+	 * Saves the room names to the snapshot file, replacing the previous
+	 * snapshot. If the snapshot cannot be written, the previous one is kept.
+	 *
+	 * @param rooms the room names to save, a synchronized collection
+	 * @return <code>true</code> if the snapshot was saved
+	 */
+	public synchronized boolean save(Collection<String> rooms)
+		{
+		if (file == null)
+			return true;
+		File tmp = new File(file.getPath() + ".tmp");
+		try
+			{
+			try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp))))
+				{
+				// copy under the collection lock so the count matches the names
+				String[] names;
+				synchronized (rooms)
+					{
+					names = rooms.toArray(new String[0]);
+					}
+				out.writeInt(MAGIC);
+				out.writeInt(VERSION);
+				out.writeInt(names.length);
+				for (String name : names)
+					out.writeUTF(name);
+				}
+			Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING,
+					StandardCopyOption.ATOMIC_MOVE);
+			return true;
+			}
+		catch (IOException e)
+			{
+			System.out.println("(IOException) Cannot save the room catalog");
+			e.printStackTrace();
+			tmp.delete();
+			return false;
+			}
+		}
+	}
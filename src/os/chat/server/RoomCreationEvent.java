@@ -0,0 +1,23 @@
+package os.chat.server;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+
+/**
+ * JDK Flight Recorder event for {@link ChatServerManager#createRoom(String)}.
+ */
+@Name("os.chat.RoomCreation")
+@Label("Room Creation")
+@Category({ "Chat", "Manager" })
+@Description("A chat room created on the chat server manager")
+public class RoomCreationEvent extends jdk.jfr.Event
+	{
+
+	@Label("Room")
+	String room;
+
+	@Label("Outcome")
+	String outcome;
+	}
@@ -0,0 +1,134 @@
+package os.chat.server;
+
+import java.util.ArrayList;
+
+/**
+ * The recent messages of a chat room, numbered with increasing sequence
+ * numbers.
+ * <p>
+ * The history keeps the last <code>capacity</code> messages in a ring, so that
+ * a client coming back after a disconnection can be sent the messages it
+ * missed. The messages themselves are stored off-heap in a
+ * {@link MessageArena}; the ring only holds their sequence numbers and
+ * addresses, and skips the messages the arena has evicted. This class is not
+ * thread safe: the {@link ChatServer} owning it must synchronize the calls.
+ */
+public class RoomHistory
+	{
+
+	private final MessageArena arena;
+	private final long[] sequences;
+	private final long[] addresses;
+
+	// position of the next message in the ring and number of messages kept
+	private int next;
+	private int size;
+
+	private long lastSequence;
+
+	/**
+	 * Constructs an empty history.
+	 *
+	 * @param arena         the storage of the messages
+	 * @param capacity      the number of messages to keep
+	 * @param firstSequence the sequence number of the first message minus one
+	 */
+	public RoomHistory(MessageArena arena, int capacity, long firstSequence)
+		{
+		this.arena = arena;
+		this.lastSequence = firstSequence;
+		this.sequences = new long[capacity];
+		this.addresses = new long[capacity];
+		}
+
+	/**
+	 * Adds a message to the history, dropping the oldest message if the
+	 * history is full.
+	 *
+	 * @param message     the message, encoded in UTF-8
+	 * @param publisher   the client from which the message originates
+	 * @return the sequence number of the message
+	 */
+	public long append(byte[] message, String publisher)
+		{
+		lastSequence++;
+		sequences[next] = lastSequence;
+		addresses[next] = arena.append(lastSequence, message, publisher);
+		next = (next + 1) % sequences.length;
+		size = Math.min(size + 1, sequences.length);
+		return lastSequence;
+		}
+
+	/**
+	 * @return the sequence number of the last message, the first sequence
+	 * number minus one if there was none
+	 */
+	public long getLastSequence()
+		{
+		return lastSequence;
+		}
+
+	/**
+	 * Retrieves the messages published after a given message.
+	 *
+	 * @param cursor the sequence number of the last message seen
+	 * @return the messages still kept whose sequence number is greater than
+	 * <code>cursor</code>, oldest first
+	 */
+	public ArrayList<Entry> since(long cursor)
+		{
+		ArrayList<Entry> missed = new ArrayList<Entry>();
+		for (int i = 0; i < size; i++)
+			{
+			int slot = (next - size + i + sequences.length) % sequences.length;
+			if (sequences[slot] > cursor)
+				{
+				Entry entry = arena.read(addresses[slot]);
+				if (entry != null)
+					missed.add(entry);
+				}
+			}
+		return missed;
+		}
+
+	/**
+	 * A message of the history.
+	 */
+	public static class Entry
+		{
+		private final long sequence;
+		private final String message;
+		private final String publisher;
+
+		Entry(long sequence, String message, String publisher)
+			{
+			this.sequence = sequence;
+			this.message = message;
+			this.publisher = publisher;
+			}
+
+		/**
+		 * @return the sequence number of the message
+		 */
+		public long getSequence()
+			{
+			return sequence;
+			}
+
+		/**
+		 * @return the message
+		 */
+		public String getMessage()
+			{
+			return message;
+			}
+
+		/**
+		 * @return the client from which the message originates
+		 */
+		public String getPublisher()
+			{
+			return publisher;
+			}
+		}
+	}
@@ -0,0 +1,114 @@
+package os.chat.server;
+
+import java.io.Serializable;
+import java.util.HashSet;
+import java.util.Set;
+
+/**
+ * The messages a client wants to receive from a chat room, registered with
+ * {@link ChatServerInterface#setFilter}.
+ * <p>
+ * A message is delivered if it was sent by one of the allowed senders, or if
+ * it contains one of the keywords or mentions (<code>@name</code>) as a whole
+ * word, ignoring case. The messages of the owner of the filter are always
+ * accepted, since a client shows its own messages as the room sends them back.
+ * An empty filter accepts every message.
+ */
+public class SubscriptionFilter implements Serializable
+	{
+
+	private static final long serialVersionUID = 1L;
+
+	private final HashSet<String> keywords = new HashSet<String>();
+	private final HashSet<String> senders = new HashSet<String>();
+	private String owner;
+
+	/**
+	 * Accepts the messages containing <code>keyword</code>.
+	 *
+	 * @param keyword the word to look for
+	 * @return this filter
+	 */
+	public SubscriptionFilter addKeyword(String keyword)
+		{
+		if (!keyword.isEmpty())
+			keywords.add(KeywordMatcher.fold(keyword));
+		return this;
+		}
+
+	/**
+	 * Accepts the messages mentioning the user <code>userName</code>, i.e.
+	 * containing <code>@userName</code>.
+	 *
+	 * @param userName the name of the user
+	 * @return this filter
+	 */
+	public SubscriptionFilter addMention(String userName)
+		{
+		return addKeyword("@" + userName);
+		}
+
+	/**
+	 * Accepts all the messages sent by the user <code>userName</code>.
+	 *
+	 * @param userName the name of the user
+	 * @return this filter
+	 */
+	public SubscriptionFilter addSender(String userName)
+		{
+		senders.add(userName);
+		return this;
+		}
+
+	/**
+	 * Sets the user whose client registers the filter. Its own messages are
+	 * accepted whatever the filter.
+	 *
+	 * @param userName the name of the user
+	 * @return this filter
+	 */
+	public SubscriptionFilter setOwner(String userName)
+		{
+		owner = userName;
+		return this;
+		}
+
+	/**
+	 * @return the user whose client registers the filter, or
+	 * <code>null</code> if it is not known
+	 */
+	public String getOwner()
+		{
+		return owner;
+		}
+
+	/**
+	 * @return the keywords and mentions of the filter, in lower case as
+	 * folded by {@link KeywordMatcher#fold(String)}
+	 */
+	public Set<String> getKeywords()
+		{
+		return keywords;
+		}
+
+	/**
+	 * @return the allowed senders of the filter
+	 */
+	public Set<String> getSenders()
+		{
+		return senders;
+		}
+
+	/**
+	 * @return <code>true</code> if the filter accepts every message
+	 */
+	public boolean isEmpty()
+		{
+		return keywords.isEmpty() && senders.isEmpty();
+		}
+
+	public String toString()
+		{
+		return "keywords=" + keywords + " senders=" + senders;
+		}
+	}
@@ -0,0 +1,385 @@
+package os.chat.server;
+
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Rolling statistics of the messages published in the chat rooms, to find
+ * which rooms and which publishers drive the load of the server.
+ * <p>
+ * Each time window (see {@link Window}) is split into a ring of buckets. A
+ * bucket counts the messages and bytes of each room and publisher in
+ * {@link CountMinSketch}es, and remembers the few heaviest rooms and
+ * publishers seen during its period as candidates for the top-K. The memory
+ * used is fixed: it does not depend on the number of rooms or publishers,
+ * and dormant rooms cost nothing. Counts are approximate, never
+ * underestimated.
+ */
+public class TrafficMonitor
+	{
+
+	/**
+	 * The time windows over which the statistics are kept.
+	 */
+	public enum Window
+		{
+		ONE_MINUTE(60 * 1000L, 6),
+		FIVE_MINUTES(5 * 60 * 1000L, 10),
+		ONE_HOUR(60 * 60 * 1000L, 12);
+
+		private final long millis;
+		private final int buckets;
+
+		Window(long millis, int buckets)
+			{
+			this.millis = millis;
+			this.buckets = buckets;
+			}
+
+		/**
+		 * @return the length of the window, in milliseconds
+		 */
+		public long getMillis()
+			{
+			return millis;
+			}
+		}
+
+	/**
+	 * The largest number of entries that can be asked from a query, and the
+	 * number of candidates each bucket keeps.
+	 */
+	public static final int MAX_TOP = 16;
+	private static final int CANDIDATES = 4 * MAX_TOP;
+
+	private static final int SKETCH_DEPTH = 4;
+	private static final int SKETCH_WIDTH = 512;
+
+	private static TrafficMonitor instance = null;
+
+	private final HashMap<Window, Tier> tiers = new HashMap<Window, Tier>();
+
+	/**
+	 * When the statistics started: a window is not full before.
+	 */
+	private final long started;
+
+	/**
+	 * Constructs a monitor with empty statistics.
+	 */
+	public TrafficMonitor()
+		{
+		started = ChatClock.millis();
+		Random random = LocalTransport.newRandom();
+		for (Window window : Window.values())
+			tiers.put(window, new Tier(window, random));
+		}
+
+	/**
+	 * Retrieves the traffic monitor fed by all the chat rooms.
+	 *
+	 * @return a reference to the singleton traffic monitor instance
+	 */
+	public static synchronized TrafficMonitor getInstance()
+		{
+		if (instance == null)
+			instance = new TrafficMonitor();
+
+		return instance;
+		}
+
+	/**
+	 * Drops the shared statistics, see {@link LocalTransport#clear()}.
+	 */
+	static synchronized void reset()
+		{
+		instance = null;
+		}
+
+	/**
+	 * Counts a message published in a chat room.
+	 *
+	 * @param roomName  the name of the chat room
+	 * @param publisher the client from which the message originates
+	 * @param bytes     the size of the message, encoded in UTF-8
+	 */
+	public void record(String roomName, String publisher, int bytes)
+		{
+		long now = ChatClock.millis();
+		for (Tier tier : tiers.values())
+			tier.record(roomName, publisher, bytes, now);
+		}
+
+	/**
+	 * Finds the chat rooms with the most messages over a time window.
+	 *
+	 * @param window the time window
+	 * @param top    the number of rooms wanted, at most {@link #MAX_TOP}
+	 * @return the hottest rooms, hottest first
+	 */
+	public List<HotSpot> getHottestRooms(Window window, int top)
+		{
+		return tiers.get(window).query(true, Math.min(top, MAX_TOP), ChatClock.millis(), started);
+		}
+
+	/**
+	 * Finds the publishers with the most messages over a time window.
+	 *
+	 * @param window the time window
+	 * @param top    the number of publishers wanted, at most {@link #MAX_TOP}
+	 * @return the hottest publishers, hottest first
+	 */
+	public List<HotSpot> getHottestPublishers(Window window, int top)
+		{
+		return tiers.get(window).query(false, Math.min(top, MAX_TOP), ChatClock.millis(), started);
+		}
+
+	/**
+	 * The estimated traffic of a chat room or a publisher over a time window.
+	 */
+	public static class HotSpot implements Serializable
+		{
+		private static final long serialVersionUID = 1L;
+
+		private final String name;
+		private final long messages;
+		private final long bytes;
+		private final long windowMillis;
+
+		HotSpot(String name, long messages, long bytes, long windowMillis)
+			{
+			this.name = name;
+			this.messages = messages;
+			this.bytes = bytes;
+			this.windowMillis = windowMillis;
+			}
+
+		/**
+		 * @return the name of the chat room or publisher
+		 */
+		public String getName()
+			{
+			return name;
+			}
+
+		/**
+		 * @return the estimated number of messages in the window
+		 */
+		public long getMessages()
+			{
+			return messages;
+			}
+
+		/**
+		 * @return the estimated number of bytes in the window
+		 */
+		public long getBytes()
+			{
+			return bytes;
+			}
+
+		/**
+		 * @return the time covered by the counts, in milliseconds: the
+		 * window, less the unfinished part of its current bucket
+		 */
+		public long getWindowMillis()
+			{
+			return windowMillis;
+			}
+
+		/**
+		 * @return the average number of messages per second in the window
+		 */
+		public double getMessageRate()
+			{
+			return messages * 1000.0 / windowMillis;
+			}
+
+		/**
+		 * @return the average number of bytes per second in the window
+		 */
+		public double getByteRate()
+			{
+			return bytes * 1000.0 / windowMillis;
+			}
+
+		public String toString()
+			{
+			return String.format("%s: %d messages (%.1f/s), %d bytes (%.1f/s)", name, messages, getMessageRate(),
+					bytes, getByteRate());
+			}
+		}
+
+	/**
+	 * The ring of buckets of a time window.
+	 */
+	private static class Tier
+		{
+		private final Window window;
+		private final long bucketMillis;
+		private final Bucket[] buckets;
+
+		Tier(Window window, Random random)
+			{
+			this.window = window;
+			this.bucketMillis = window.millis / window.buckets;
+			this.buckets = new Bucket[window.buckets];
+			for (int i = 0; i < buckets.length; i++)
+				buckets[i] = new Bucket(random);
+			}
+
+		synchronized void record(String roomName, String publisher, int bytes, long now)
+			{
+			long period = now / bucketMillis;
+			Bucket bucket = buckets[(int) (period % buckets.length)];
+			if (bucket.period != period)
+				bucket.reset(period);
+			bucket.record(roomName, publisher, bytes);
+			}
+
+		synchronized List<HotSpot> query(boolean rooms, int top, long now, long started)
+			{
+			long period = now / bucketMillis;
+			// the full buckets before the current one, and the elapsed part of
+			// the current one, but nothing before the statistics started
+			long covered = Math.min((buckets.length - 1) * bucketMillis + now % bucketMillis, now - started);
+			covered = Math.max(1, covered);
+			HashSet<String> candidates = new HashSet<String>();
+			for (Bucket bucket : buckets)
+				if (bucket.period > period - buckets.length)
+					(rooms ? bucket.roomCandidates : bucket.publisherCandidates).addNamesTo(candidates);
+
+			ArrayList<HotSpot> spots = new ArrayList<HotSpot>();
+			for (String name : candidates)
+				{
+				long messages = 0;
+				long bytes = 0;
+				for (Bucket bucket : buckets)
+					{
+					if (bucket.period > period - buckets.length)
+						{
+						messages += (rooms ? bucket.roomMessages : bucket.publisherMessages).estimate(name);
+						bytes += (rooms ? bucket.roomBytes : bucket.publisherBytes).estimate(name);
+						}
+					}
+				spots.add(new HotSpot(name, messages, bytes, covered));
+				}
+			Collections.sort(spots, new Comparator<HotSpot>()
+				{
+				public int compare(HotSpot a, HotSpot b)
+					{
+					return Long.compare(b.messages, a.messages);
+					}
+				});
+			return new ArrayList<HotSpot>(spots.subList(0, Math.min(top, spots.size())));
+			}
+		}
+
+	/**
+	 * The statistics of one period of a time window.
+	 */
+	private static class Bucket
+		{
+		long period = -1;
+		final CountMinSketch roomMessages;
+		final CountMinSketch roomBytes;
+		final CountMinSketch publisherMessages;
+		final CountMinSketch publisherBytes;
+		final Candidates roomCandidates = new Candidates();
+		final Candidates publisherCandidates = new Candidates();
+
+		Bucket(Random random)
+			{
+			roomMessages = new CountMinSketch(SKETCH_DEPTH, SKETCH_WIDTH, random);
+			roomBytes = new CountMinSketch(SKETCH_DEPTH, SKETCH_WIDTH, random);
+			publisherMessages = new CountMinSketch(SKETCH_DEPTH, SKETCH_WIDTH, random);
+			publisherBytes = new CountMinSketch(SKETCH_DEPTH, SKETCH_WIDTH, random);
+			}
+
+		void reset(long period)
+			{
+			this.period = period;
+			roomMessages.clear();
+			roomBytes.clear();
+			publisherMessages.clear();
+			publisherBytes.clear();
+			roomCandidates.clear();
+			publisherCandidates.clear();
+			}
+
+		void record(String roomName, String publisher, int bytes)
+			{
+			roomBytes.add(roomName, bytes);
+			publisherBytes.add(publisher, bytes);
+			roomCandidates.offer(roomName, roomMessages.add(roomName, 1));
+			publisherCandidates.offer(publisher, publisherMessages.add(publisher, 1));
+			}
+		}
+
+	/**
+	 * The heaviest names seen during a period, with their last estimated
+	 * count. The counts are kept in an array, so counting a name already
+	 * there allocates nothing.
+	 */
+	private static class Candidates
+		{
+		// slot of each name; the slots are below 128, so their Integers are cached
+		private final HashMap<String, Integer> slots = new HashMap<String, Integer>();
+		private final String[] names = new String[CANDIDATES];
+		private final long[] counts = new long[CANDIDATES];
+
+		/**
+		 * Keeps <code>name</code> as a candidate if there is room left or if
+		 * its count is above the smallest candidate, which it then replaces.
+		 */
+		void offer(String name, long count)
+			{
+			Integer slot = slots.get(name);
+			if (slot != null)
+				{
+				counts[slot] = count;
+				return;
+				}
+			int free = slots.size();
+			if (free < CANDIDATES)
+				{
+				put(free, name, count);
+				return;
+				}
+			int smallest = 0;
+			for (int i = 1; i < CANDIDATES; i++)
+				if (counts[i] < counts[smallest])
+					smallest = i;
+			if (count > counts[smallest])
+				{
+				slots.remove(names[smallest]);
+				put(smallest, name, count);
+				}
+			}
+
+		private void put(int slot, String name, long count)
+			{
+			names[slot] = name;
+			counts[slot] = count;
+			slots.put(name, slot);
+			}
+
+		void addNamesTo(HashSet<String> set)
+			{
+			set.addAll(slots.keySet());
+			}
+
+		void clear()
+			{
+			slots.clear();
+			Arrays.fill(names, null);
+			}
+		}
+	}
@@ -0,0 +1,90 @@
+package os.chat.server;
+
+import os.chat.client.CommandsFromServer;
+
+import java.util.Arrays;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * The directory of the connected users, mapping each user name to the
+ * callback stubs of its clients.
+ * <p>
+ * A user can be connected from several clients at the same time. The stubs
+ * of a user are kept in a small array that is replaced on every change, so a
+ * lookup is a single hash map access, without locking, and returns an array
+ * that is never modified afterwards. A user with no connected client is removed from the
+ * directory.
+ */
+public class UserDirectory
+	{
+
+	private static final CommandsFromServer[] NONE = new CommandsFromServer[0];
+
+	private final ConcurrentHashMap<String, CommandsFromServer[]> users =
+			new ConcurrentHashMap<String, CommandsFromServer[]>();
+
+	/**
+	 * Adds a client of the user <code>userName</code>. Connecting the same
+	 * client again has no effect.
+	 *
+	 * @param userName the name of the user
+	 * @param client   the callback stub of the client
+	 */
+	public synchronized void connect(String userName, CommandsFromServer client)
+		{
+		CommandsFromServer[] clients = users.get(userName);
+		if (clients == null)
+			users.put(userName, new CommandsFromServer[] { client });
+		else if (!Arrays.asList(clients).contains(client))
+			{
+			CommandsFromServer[] grown = Arrays.copyOf(clients, clients.length + 1);
+			grown[clients.length] = client;
+			users.put(userName, grown);
+			}
+		}
+
+	/**
+	 * Removes a client of the user <code>userName</code>. The operation has no
+	 * effect if the client is not connected.
+	 *
+	 * @param userName the name of the user
+	 * @param client   the callback stub of the client
+	 */
+	public synchronized void disconnect(String userName, CommandsFromServer client)
+		{
+		CommandsFromServer[] clients = users.get(userName);
+		int index = clients == null ? -1 : Arrays.asList(clients).indexOf(client);
+		if (index < 0)
+			return;
+		if (clients.length == 1)
+			{
+			users.remove(userName);
+			return;
+			}
+		CommandsFromServer[] shrunk = new CommandsFromServer[clients.length - 1];
+		System.arraycopy(clients, 0, shrunk, 0, index);
+		System.arraycopy(clients, index + 1, shrunk, index, shrunk.length - index);
+		users.put(userName, shrunk);
+		}
+
+	/**
+	 * Looks up the connected clients of the user <code>userName</code>.
+	 *
+	 * @param userName the name of the user
+	 * @return the callback stubs of the user, an empty array if the user is not
+	 * connected. The array must not be modified.
+	 */
+	public CommandsFromServer[] lookup(String userName)
+		{
+		CommandsFromServer[] clients = users.get(userName);
+		return clients == null ? NONE : clients;
+		}
+
+	/**
+	 * @return the number of connected users
+	 */
+	public int size()
+		{
+		return users.size();
+		}
+	}
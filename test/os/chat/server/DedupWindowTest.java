@@ -0,0 +1,92 @@
+package os.chat.server;
+
+/**
+ * Checks the {@link DedupWindow}: duplicates are dropped, ids are remembered
+ * for at least half the window and at most the whole window or
+ * <code>capacity</code> ids, and the tables start small and stay bounded.
+ * <p>
+ * Run with <code>java os.chat.server.DedupWindowTest</code>; the test fails
+ * with an {@link AssertionError}.
+ */
+public class DedupWindowTest
+	{
+
+	private static final long WINDOW = 1000;
+	private static final int CAPACITY = 128;
+
+	public static void main(String[] args)
+		{
+		duplicates();
+		rotationByTime();
+		rotationByCapacity();
+		expiry();
+		memory();
+		System.out.println("DedupWindowTest passed");
+		}
+
+	private static void duplicates()
+		{
+		DedupWindow window = new DedupWindow(WINDOW, CAPACITY, 0);
+		check(window.firstSeen(42, 0), "first id seen as a duplicate");
+		check(!window.firstSeen(42, 1), "retry not dropped");
+		check(window.firstSeen(43, 2), "other id seen as a duplicate");
+		check(window.firstSeen(0, 3) && window.firstSeen(0, 4), "id 0 seen as a duplicate");
+		}
+
+	private static void rotationByTime()
+		{
+		DedupWindow window = new DedupWindow(WINDOW, CAPACITY, 0);
+		window.firstSeen(1, 0);
+		// half a window later the generation rotates, the id is in the previous one
+		check(!window.firstSeen(1, WINDOW / 2), "id forgotten before half the window");
+		window.firstSeen(2, WINDOW / 2);
+		// another half later the generation of id 1 is dropped
+		check(window.firstSeen(1, WINDOW), "id remembered after the whole window");
+		check(!window.firstSeen(2, WINDOW), "id of the previous generation forgotten");
+		}
+
+	private static void rotationByCapacity()
+		{
+		DedupWindow window = new DedupWindow(WINDOW, CAPACITY, 0);
+		for (long id = 1; id <= CAPACITY; id++)
+			check(window.firstSeen(id, 0), "id " + id + " seen as a duplicate");
+		// the full generation rotates, its ids are still remembered
+		check(window.firstSeen(CAPACITY + 1, 0), "new id seen as a duplicate");
+		check(!window.firstSeen(1, 0), "id forgotten after one rotation");
+		for (long id = CAPACITY + 2; id <= 2 * CAPACITY + 1; id++)
+			window.firstSeen(id, 0);
+		// two rotations later, the first generation is gone
+		check(window.firstSeen(2, 0), "id remembered beyond two generations");
+		}
+
+	private static void expiry()
+		{
+		DedupWindow window = new DedupWindow(WINDOW, CAPACITY, 0);
+		window.firstSeen(7, 0);
+		check(!window.isIdle(WINDOW - 1), "idle before the whole window");
+		check(window.isIdle(WINDOW), "not idle after the whole window");
+		// after a long silence both generations are dropped
+		check(window.firstSeen(7, 3 * WINDOW), "id remembered after a long silence");
+		check(window.slots() == DedupWindow.INITIAL_SLOTS, "expired generation kept: " + window.slots());
+		}
+
+	private static void memory()
+		{
+		DedupWindow window = new DedupWindow(WINDOW, CAPACITY, 0);
+		check(window.slots() == DedupWindow.INITIAL_SLOTS, "new window not small: " + window.slots());
+		window.firstSeen(1, 0);
+		window.firstSeen(2, 0);
+		check(window.slots() == DedupWindow.INITIAL_SLOTS, "few ids grew the window: " + window.slots());
+		for (long id = 3; id < 100 * CAPACITY; id++)
+			{
+			check(window.firstSeen(id, 0), "id " + id + " seen as a duplicate");
+			check(window.slots() <= 4 * CAPACITY, "window grew to " + window.slots());
+			}
+		}
+
+	private static void check(boolean condition, String message)
+		{
+		if (!condition)
+			throw new AssertionError(message);
+		}
+	}
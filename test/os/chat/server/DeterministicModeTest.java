@@ -0,0 +1,116 @@
+package os.chat.server;
+
+import os.chat.client.ChatClient;
+import os.chat.client.CommandsToWindow;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Checks the deterministic mode of the {@link LocalTransport}: the ordering of
+ * the deliveries by the {@link DeliveryScheduler}, the latencies measured on
+ * the manual {@link ChatClock}, and that two runs of the same scenario in the
+ * same JVM give the same transcript.
+ * <p>
+ * Run with <code>java os.chat.server.DeterministicModeTest</code>; the test
+ * fails with an {@link AssertionError}.
+ */
+public class DeterministicModeTest
+	{
+
+	private static final int BUSY_CLIENTS = 40;
+	private static final int BUSY_MESSAGES = 4;
+
+	public static void main(String[] args)
+		{
+		List<String> first = runScenario();
+		List<String> second = runScenario();
+		check(first.equals(second), "two runs differ:\n" + first + "\n" + second);
+		LocalTransport.setDeterministic(false);
+		ChatClock.useSystem();
+		System.out.println("DeterministicModeTest passed");
+		}
+
+	/**
+	 * A busy room with many subscribers and a quiet room with one, both
+	 * publishing before the deliveries run.
+	 *
+	 * @return the messages shown by all the windows, in order
+	 */
+	private static List<String> runScenario()
+		{
+		LocalTransport.setDeterministic(true);
+		LocalTransport.clear();
+		ChatClock.useManual(1000);
+		System.clearProperty("os.chat.catalog");
+
+		final List<String> transcript = new ArrayList<String>();
+		ChatServerManager manager = ChatServerManager.getInstance();
+		manager.createRoom("busy");
+		manager.createRoom("quiet");
+
+		ChatClient[] busy = new ChatClient[BUSY_CLIENTS];
+		for (int i = 0; i < busy.length; i++)
+			{
+			busy[i] = new ChatClient(window("user" + i, transcript), "user" + i, "127.0.0.1");
+			busy[i].joinChatRoom("busy");
+			}
+		ChatClient quiet = new ChatClient(window("quiet", transcript), "quiet", "127.0.0.1");
+		quiet.joinChatRoom("quiet");
+		check(noChatThreads(), "threads were started");
+
+		for (int m = 0; m < BUSY_MESSAGES; m++)
+			busy[0].sendText("busy", "m" + m);
+		quiet.sendText("quiet", "hello");
+		ChatClock.advance(5);
+		LocalTransport.runUntilIdle();
+
+		// every message reached every subscriber, in order
+		check(transcript.size() == BUSY_CLIENTS * BUSY_MESSAGES + 1, "lost messages: " + transcript.size());
+		for (int i = 0; i < BUSY_CLIENTS; i++)
+			{
+			int next = 0;
+			for (String line : transcript)
+				if (line.startsWith("user" + i + " "))
+					check(line.endsWith("user0: m" + next++), "out of order: " + line);
+			}
+
+		// the quiet room got its turn after one quantum of the busy room,
+		// not after all its messages
+		int quietAt = transcript.indexOf("quiet [quiet] quiet: hello");
+		check(quietAt >= 0 && quietAt < 2 * BUSY_CLIENTS, "quiet room starved, delivered at " + quietAt);
+
+		// every delivery waited the 5 ms of the manual clock
+		DeliveryScheduler.Latency latency = manager.getDeliveryLatency("quiet");
+		check(latency.getDelivered() == 1 && latency.getMaxNanos() == 5000000L, "latency " + latency);
+		check(manager.getDeliveryLatency("busy").getAverageNanos() == 5000000L, "latency "
+				+ manager.getDeliveryLatency("busy"));
+		return transcript;
+		}
+
+	private static CommandsToWindow window(final String user, final List<String> transcript)
+		{
+		return new CommandsToWindow()
+			{
+			public void publish(String roomName, String message)
+				{
+				transcript.add(user + " [" + roomName + "] " + message);
+				}
+			};
+		}
+
+	private static boolean noChatThreads()
+		{
+		for (Thread thread : Thread.getAllStackTraces().keySet())
+			if (thread.getName().startsWith("delivery-") || thread.getName().startsWith("inbound-")
+					|| thread.getName().startsWith("outbound-"))
+				return false;
+		return true;
+		}
+
+	private static void check(boolean condition, String message)
+		{
+		if (!condition)
+			throw new AssertionError(message);
+		}
+	}
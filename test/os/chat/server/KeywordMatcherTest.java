@@ -0,0 +1,111 @@
+package os.chat.server;
+
+import java.util.BitSet;
+import java.util.Locale;
+import java.util.Random;
+
+/**
+ * Checks the {@link KeywordMatcher} against a naive matcher on random
+ * keywords and texts, and the case folding of the keywords of a
+ * {@link SubscriptionFilter}, which must agree with that of the text
+ * whatever the default locale.
+ * <p>
+ * Run with <code>java os.chat.server.KeywordMatcherTest</code>; the test
+ * fails with an {@link AssertionError}.
+ */
+public class KeywordMatcherTest
+	{
+
+	// few characters, so that keywords overlap and share prefixes and suffixes
+	private static final String ALPHABET = "abAB1 -@\u0130i\u0131I";
+	private static final int CASES = 20000;
+
+	public static void main(String[] args)
+		{
+		randomized(new Random(42));
+		folding();
+		System.out.println("KeywordMatcherTest passed");
+		}
+
+	private static void randomized(Random random)
+		{
+		for (int n = 0; n < CASES; n++)
+			{
+			String[] keywords = new String[1 + random.nextInt(6)];
+			for (int id = 0; id < keywords.length; id++)
+				keywords[id] = randomString(random, 1 + random.nextInt(4));
+			String text = randomString(random, random.nextInt(30));
+
+			BitSet found = new BitSet();
+			new KeywordMatcher(keywords).match(text, found);
+			for (int id = 0; id < keywords.length; id++)
+				check(found.get(id) == naiveMatch(keywords[id], text), "keyword '" + keywords[id] + "' in '" + text
+						+ "': automaton " + found.get(id));
+			}
+		}
+
+	private static void folding()
+		{
+		Locale defaultLocale = Locale.getDefault();
+		try
+			{
+			Locale.setDefault(new Locale("tr", "TR"));
+			check(matches("\u0130stanbul", "welcome to \u0130stanbul"), "dotted capital I not matched by itself");
+			check(matches("IRC", "join us on irc"), "keyword with I folded by the default locale");
+			check(matches("irc", "join us on IRC"), "text with I not matched");
+			}
+		finally
+			{
+			Locale.setDefault(defaultLocale);
+			}
+		}
+
+	private static boolean matches(String keyword, String text)
+		{
+		SubscriptionFilter filter = new SubscriptionFilter().addKeyword(keyword);
+		String folded = filter.getKeywords().iterator().next();
+		check(folded.length() == keyword.length(), "folding changed the length of '" + keyword + "'");
+		BitSet found = new BitSet();
+		new KeywordMatcher(new String[] {folded}).match(text, found);
+		return found.get(0);
+		}
+
+	/**
+	 * Looks for <code>keyword</code> at every position of <code>text</code>,
+	 * as a whole word and ignoring case.
+	 */
+	private static boolean naiveMatch(String keyword, String text)
+		{
+		boolean wordStart = Character.isLetterOrDigit(keyword.charAt(0));
+		boolean wordEnd = Character.isLetterOrDigit(keyword.charAt(keyword.length() - 1));
+		for (int start = 0; start + keyword.length() <= text.length(); start++)
+			{
+			int end = start + keyword.length();
+			boolean equal = true;
+			for (int i = 0; i < keyword.length() && equal; i++)
+				equal = Character.toLowerCase(keyword.charAt(i)) == Character.toLowerCase(text.charAt(start + i));
+			if (!equal)
+				continue;
+			if (wordStart && start > 0 && Character.isLetterOrDigit(text.charAt(start - 1)))
+				continue;
+			if (wordEnd && end < text.length() && Character.isLetterOrDigit(text.charAt(end)))
+				continue;
+			return true;
+			}
+		return false;
+		}
+
+	private static String randomString(Random random, int length)
+		{
+		StringBuilder string = new StringBuilder(length);
+		for (int i = 0; i < length; i++)
+			string.append(ALPHABET.charAt(random.nextInt(ALPHABET.length())));
+		return string.toString();
+		}
+
+	private static void check(boolean condition, String message)
+		{
+		if (!condition)
+			throw new AssertionError(message);
+		}
+	}